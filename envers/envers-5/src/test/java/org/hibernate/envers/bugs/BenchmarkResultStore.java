@@ -0,0 +1,413 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.envers.bugs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Keeps the history of benchmark runs, one JSON line per run in {@code <benchmark.history.dir>/<scenario>.jsonl},
+ * and compares each new run with several baseline runs of the same scenario.  Until the history holds enough runs to
+ * make a baseline, runs are only recorded.
+ *
+ * Each template with benchmarks holds a copy of this class and of {@link RegressionCheck}, which only differ by their
+ * package and license header: keep them in sync.
+ *
+ * System properties:
+ * <ul>
+ *     <li>{@code benchmark.history.dir}: where the history is kept, {@code target/benchmark-history} by default; point
+ *     it outside of {@code target} to keep the history across {@code mvn clean}</li>
+ *     <li>{@code benchmark.baseline}: {@code previous} (default) to compare with the previous runs, {@code first} to
+ *     compare with the first recorded runs</li>
+ *     <li>{@code benchmark.baseline.runs}: the number of runs making the baseline, {@value #DEFAULT_BASELINE_RUNS} by
+ *     default</li>
+ *     <li>{@code benchmark.failOnRegression}: {@code true} to fail the test when a regression is detected, instead of
+ *     only logging it</li>
+ * </ul>
+ */
+public class BenchmarkResultStore {
+
+	private static final Logger log = Logger.getLogger( BenchmarkResultStore.class );
+
+	public static final int DEFAULT_BASELINE_RUNS = 5;
+
+	private final File directory;
+	private final int baselineRuns;
+
+	public BenchmarkResultStore(File directory, int baselineRuns) {
+		this.directory = directory;
+		this.baselineRuns = baselineRuns;
+	}
+
+	public static BenchmarkResultStore getDefault() {
+		return new BenchmarkResultStore(
+				new File( System.getProperty( "benchmark.history.dir", "target/benchmark-history" ) ),
+				Integer.getInteger( "benchmark.baseline.runs", DEFAULT_BASELINE_RUNS )
+		);
+	}
+
+	/**
+	 * Appends a run to the history of its scenario, then checks it against the baseline runs.
+	 *
+	 * @param scenario the name of the scenario, used as the file name
+	 * @param unit the unit of the samples, e.g. {@code us}
+	 * @param samples one value per iteration; lower is better
+	 *
+	 * @return the comparison with the baseline, or {@code null} if the history did not hold enough runs yet
+	 *
+	 * @throws IllegalArgumentException if there are no samples
+	 */
+	public RegressionCheck record(String scenario, String unit, long[] samples) {
+		if ( samples.length == 0 ) {
+			throw new IllegalArgumentException( "No samples to record for [" + scenario + "]" );
+		}
+		List<Run> history = getHistory( scenario );
+		Run run = new Run( Instant.now().toString(), scenario, unit, samples );
+		append( run );
+
+		if ( history.size() < baselineRuns ) {
+			log.infof(
+					"[%s] recorded, not checked: the baseline needs %d previous runs, %d recorded so far",
+					scenario,
+					baselineRuns,
+					history.size()
+			);
+			return null;
+		}
+		List<Run> baseline = "first".equals( System.getProperty( "benchmark.baseline" ) )
+				? history.subList( 0, baselineRuns )
+				: history.subList( history.size() - baselineRuns, history.size() );
+		List<long[]> baselineSamples = new ArrayList<>( baseline.size() );
+		for ( Run baselineRun : baseline ) {
+			baselineSamples.add( baselineRun.samples );
+		}
+		RegressionCheck check = new RegressionCheck( baselineSamples, samples );
+		String runs = String.format(
+				"the %d runs from %s to %s",
+				baseline.size(),
+				baseline.get( 0 ).timestamp,
+				baseline.get( baseline.size() - 1 ).timestamp
+		);
+		if ( check.isRegression() ) {
+			String message = String.format( "Regression in [%s] against %s: %s", scenario, runs, check );
+			if ( Boolean.getBoolean( "benchmark.failOnRegression" ) ) {
+				throw new AssertionError( message );
+			}
+			log.warn( message );
+		}
+		else {
+			log.infof( "[%s] against %s: %s", scenario, runs, check );
+		}
+		return check;
+	}
+
+	public List<Run> getHistory(String scenario) {
+		File file = getFile( scenario );
+		if ( !file.exists() ) {
+			return Collections.emptyList();
+		}
+		try {
+			List<Run> runs = new ArrayList<>();
+			for ( String line : Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 ) ) {
+				if ( line.trim().isEmpty() ) {
+					continue;
+				}
+				try {
+					Run run = parse( line );
+					// Scenarios whose names only differ by special characters share the same file
+					if ( run.scenario.equals( scenario ) ) {
+						runs.add( run );
+					}
+				}
+				catch (IllegalArgumentException e) {
+					log.warnf( "Skipping a malformed line of %s: %s", file, e.getMessage() );
+				}
+			}
+			return runs;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to read " + file, e );
+		}
+	}
+
+	private void append(Run run) {
+		File file = getFile( run.scenario );
+		file.getParentFile().mkdirs();
+		String line = format( run ) + System.lineSeparator();
+		try {
+			Files.write(
+					file.toPath(),
+					line.getBytes( StandardCharsets.UTF_8 ),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND
+			);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to write " + file, e );
+		}
+	}
+
+	/**
+	 * Formats a run as a single JSON line, without the line separator.
+	 */
+	static String format(Run run) {
+		StringBuilder json = new StringBuilder( "{\"timestamp\":" ).append( jsonString( run.timestamp ) )
+				.append( ",\"scenario\":" ).append( jsonString( run.scenario ) )
+				.append( ",\"unit\":" ).append( jsonString( run.unit ) )
+				.append( ",\"samples\":[" );
+		for ( int i = 0; i < run.samples.length; i++ ) {
+			json.append( i == 0 ? "" : "," ).append( run.samples[i] );
+		}
+		return json.append( "]}" ).toString();
+	}
+
+	/**
+	 * Parses a line written by {@link #format(Run)}; unknown attributes are ignored.
+	 *
+	 * @throws IllegalArgumentException if the line is not such a JSON object
+	 */
+	static Run parse(String line) {
+		return new JsonRunParser( line ).parse();
+	}
+
+	private static String jsonString(String value) {
+		StringBuilder json = new StringBuilder( value.length() + 2 ).append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if ( c == '"' || c == '\\' ) {
+				json.append( '\\' ).append( c );
+			}
+			else if ( c < 0x20 ) {
+				json.append( String.format( "\\u%04x", (int) c ) );
+			}
+			else {
+				json.append( c );
+			}
+		}
+		return json.append( '"' ).toString();
+	}
+
+	private File getFile(String scenario) {
+		return new File( directory, scenario.replaceAll( "[^A-Za-z0-9._-]", "_" ) + ".jsonl" );
+	}
+
+	public static class Run {
+		private final String timestamp;
+		private final String scenario;
+		private final String unit;
+		private final long[] samples;
+
+		Run(String timestamp, String scenario, String unit, long[] samples) {
+			this.timestamp = timestamp;
+			this.scenario = scenario;
+			this.unit = unit;
+			this.samples = samples;
+		}
+
+		public String getTimestamp() {
+			return timestamp;
+		}
+
+		public String getScenario() {
+			return scenario;
+		}
+
+		public String getUnit() {
+			return unit;
+		}
+
+		public long[] getSamples() {
+			return samples;
+		}
+	}
+
+	/**
+	 * Reads the flat JSON objects written by {@link #format(Run)}: string, number and number array attributes.
+	 */
+	private static class JsonRunParser {
+		private final String json;
+		private int position;
+
+		private JsonRunParser(String json) {
+			this.json = json;
+		}
+
+		private Run parse() {
+			String timestamp = null;
+			String scenario = null;
+			String unit = null;
+			long[] samples = null;
+
+			expect( '{' );
+			if ( !consume( '}' ) ) {
+				do {
+					String key = readString();
+					expect( ':' );
+					switch ( key ) {
+						case "timestamp":
+							timestamp = readString();
+							break;
+						case "scenario":
+							scenario = readString();
+							break;
+						case "unit":
+							unit = readString();
+							break;
+						case "samples":
+							samples = readNumbers();
+							break;
+						default:
+							skipValue();
+					}
+				}
+				while ( consume( ',' ) );
+				expect( '}' );
+			}
+			skipWhitespace();
+			if ( position != json.length() ) {
+				throw error( "unexpected content after the object" );
+			}
+			if ( timestamp == null || scenario == null || unit == null || samples == null ) {
+				throw error( "missing attribute" );
+			}
+			return new Run( timestamp, scenario, unit, samples );
+		}
+
+		private String readString() {
+			expect( '"' );
+			StringBuilder value = new StringBuilder();
+			while ( true ) {
+				if ( position >= json.length() ) {
+					throw error( "unterminated string" );
+				}
+				char c = json.charAt( position++ );
+				if ( c == '"' ) {
+					return value.toString();
+				}
+				if ( c != '\\' ) {
+					value.append( c );
+					continue;
+				}
+				if ( position >= json.length() ) {
+					throw error( "unterminated escape sequence" );
+				}
+				char escaped = json.charAt( position++ );
+				switch ( escaped ) {
+					case 'b':
+						value.append( '\b' );
+						break;
+					case 'f':
+						value.append( '\f' );
+						break;
+					case 'n':
+						value.append( '\n' );
+						break;
+					case 'r':
+						value.append( '\r' );
+						break;
+					case 't':
+						value.append( '\t' );
+						break;
+					case 'u':
+						if ( position + 4 > json.length() ) {
+							throw error( "invalid unicode escape" );
+						}
+						try {
+							value.append( (char) Integer.parseInt( json.substring( position, position + 4 ), 16 ) );
+						}
+						catch (NumberFormatException e) {
+							throw error( "invalid unicode escape" );
+						}
+						position += 4;
+						break;
+					default:
+						// \", \\ and \/
+						value.append( escaped );
+				}
+			}
+		}
+
+		private long[] readNumbers() {
+			expect( '[' );
+			List<Long> numbers = new ArrayList<>();
+			if ( !consume( ']' ) ) {
+				do {
+					numbers.add( readNumber() );
+				}
+				while ( consume( ',' ) );
+				expect( ']' );
+			}
+			long[] values = new long[numbers.size()];
+			for ( int i = 0; i < values.length; i++ ) {
+				values[i] = numbers.get( i );
+			}
+			return values;
+		}
+
+		private long readNumber() {
+			skipWhitespace();
+			int start = position;
+			while ( position < json.length() && "-0123456789".indexOf( json.charAt( position ) ) >= 0 ) {
+				position++;
+			}
+			try {
+				return Long.parseLong( json.substring( start, position ) );
+			}
+			catch (NumberFormatException e) {
+				throw error( "invalid number" );
+			}
+		}
+
+		private void skipValue() {
+			skipWhitespace();
+			if ( position < json.length() && json.charAt( position ) == '"' ) {
+				readString();
+			}
+			else if ( position < json.length() && json.charAt( position ) == '[' ) {
+				readNumbers();
+			}
+			else {
+				readNumber();
+			}
+		}
+
+		private void expect(char expected) {
+			if ( !consume( expected ) ) {
+				throw error( "expected '" + expected + "'" );
+			}
+		}
+
+		private boolean consume(char expected) {
+			skipWhitespace();
+			if ( position < json.length() && json.charAt( position ) == expected ) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void skipWhitespace() {
+			while ( position < json.length() && Character.isWhitespace( json.charAt( position ) ) ) {
+				position++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException( message + " at position " + position );
+		}
+	}
+}
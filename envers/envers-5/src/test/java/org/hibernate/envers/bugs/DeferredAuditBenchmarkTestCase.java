@@ -0,0 +1,210 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.envers.bugs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.envers.AuditReaderFactory;
+import org.hibernate.envers.Audited;
+import org.hibernate.envers.configuration.EnversSettings;
+import org.hibernate.envers.query.AuditEntity;
+import org.hibernate.envers.strategy.DefaultAuditStrategy;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template runs the same audited transactions with the {@link DefaultAuditStrategy}, which writes the audit rows
+ * in the flush of each transaction, and with the {@link DeferredAuditStrategy}, which hands them over to a
+ * {@link DeferredAuditWriter} writing them in batches on a background thread.  For each, it reports the latency of
+ * the audited transactions and, for the deferred strategy, the audit lag, i.e. how long after its capture each audit
+ * row was written.
+ *
+ * Both strategies must produce the same audit history, which is checked once the writer is flushed: the flush fails if
+ * some audit rows could not be written.  {@link DeferredAuditWriterTestCase} checks the writer itself.
+ */
+public class DeferredAuditBenchmarkTestCase extends AbstractEnversTestCase {
+
+	private static final Logger log = Logger.getLogger( DeferredAuditBenchmarkTestCase.class );
+
+	private static final int ACCOUNTS = 200;
+	private static final int TRANSACTIONS = 500;
+	private static final int ACCOUNTS_PER_TRANSACTION = 20;
+
+	@Override
+	protected Class[] getAnnotatedClasses() {
+		return new Class[] { AuditedAccount.class };
+	}
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.SHOW_SQL, Boolean.FALSE.toString() );
+		configuration.setProperty( AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf( 50 ) );
+		configuration.setProperty( "hibernate.session.events.log", Boolean.FALSE.toString() );
+		configuration.setProperty( DeferredAuditWriter.BATCH_SIZE, String.valueOf( 500 ) );
+		configuration.setProperty( DeferredAuditWriter.QUEUE_SIZE, String.valueOf( 10_000 ) );
+	}
+
+	@Test
+	public void transactionLatencyVersusAuditLag() throws Exception {
+		StringBuilder report = new StringBuilder( "Audited transactions, " + ACCOUNTS_PER_TRANSACTION + " updates each:" );
+
+		rebuildSessionFactory( configuration -> configuration.setProperty(
+				EnversSettings.AUDIT_STRATEGY, DefaultAuditStrategy.class.getName()
+		) );
+		long[] synchronousLatencies = runTransactions();
+		BenchmarkResultStore.getDefault().record(
+				"DeferredAuditBenchmarkTestCase.transaction.synchronous", "us", micros( synchronousLatencies )
+		);
+		report.append( String.format( "%n%-12s %s", "synchronous", latencies( synchronousLatencies ) ) );
+		long synchronousAuditRows = countAuditRows();
+
+		rebuildSessionFactory( configuration -> configuration.setProperty(
+				EnversSettings.AUDIT_STRATEGY, DeferredAuditStrategy.class.getName()
+		) );
+		DeferredAuditWriter writer = DeferredAuditWriter.forSessionFactory( sessionFactory() );
+		long[] deferredLatencies = runTransactions();
+		writer.flush( 1, TimeUnit.MINUTES );
+		long[] lags = writer.getLagNanos();
+		BenchmarkResultStore store = BenchmarkResultStore.getDefault();
+		store.record( "DeferredAuditBenchmarkTestCase.transaction.deferred", "us", micros( deferredLatencies ) );
+		store.record( "DeferredAuditBenchmarkTestCase.audit lag", "us", micros( lags ) );
+		Arrays.sort( lags );
+		report.append( String.format( "%n%-12s %s", "deferred", latencies( deferredLatencies ) ) );
+		report.append( String.format(
+				" | audit lag p50 %6d us, p99 %6d us, max %6d us",
+				micros( percentile( lags, 50 ) ),
+				micros( percentile( lags, 99 ) ),
+				micros( lags[lags.length - 1] )
+		) );
+		log.info( report );
+
+		assertEquals( 0, writer.getFailedRecordCount() );
+		assertEquals( synchronousAuditRows, writer.getWrittenRecordCount() );
+		assertEquals( synchronousAuditRows, countAuditRows() );
+		assertEquals(
+				1 + TRANSACTIONS * ACCOUNTS_PER_TRANSACTION / ACCOUNTS,
+				getAuditReader().getRevisions( AuditedAccount.class, 1L ).size()
+		);
+	}
+
+	/**
+	 * Creates the accounts, then runs {@link #TRANSACTIONS} transactions updating {@link #ACCOUNTS_PER_TRANSACTION}
+	 * accounts each, and returns the latency of each of these transactions.
+	 */
+	private long[] runTransactions() {
+		long[] latencies = new long[TRANSACTIONS];
+		try ( Session session = openSession() ) {
+			Transaction tx = session.beginTransaction();
+			for ( long id = 1; id <= ACCOUNTS; id++ ) {
+				session.persist( new AuditedAccount( id, "account" + id ) );
+			}
+			tx.commit();
+
+			for ( int t = 0; t < TRANSACTIONS; t++ ) {
+				long start = System.nanoTime();
+				tx = session.beginTransaction();
+				for ( int j = 0; j < ACCOUNTS_PER_TRANSACTION; j++ ) {
+					long id = (long) t * ACCOUNTS_PER_TRANSACTION % ACCOUNTS + j + 1;
+					AuditedAccount account = session.get( AuditedAccount.class, id );
+					account.setBalance( account.getBalance() + t + 1 );
+				}
+				tx.commit();
+				latencies[t] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort( latencies );
+		return latencies;
+	}
+
+	private long countAuditRows() {
+		try ( Session session = openSession() ) {
+			return (Long) AuditReaderFactory.get( session ).createQuery()
+					.forRevisionsOfEntity( AuditedAccount.class, false, true )
+					.addProjection( AuditEntity.id().count() )
+					.getSingleResult();
+		}
+	}
+
+	private static String latencies(long[] sorted) {
+		long total = 0;
+		for ( long latency : sorted ) {
+			total += latency;
+		}
+		return String.format(
+				"transaction p50 %6d us, p99 %6d us, %6.0f tx/s",
+				micros( percentile( sorted, 50 ) ),
+				micros( percentile( sorted, 99 ) ),
+				sorted.length * 1e9 / total
+		);
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil( percentile / 100d * sorted.length ) - 1;
+		return sorted[Math.max( 0, index )];
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros( nanos );
+	}
+
+	private static long[] micros(long[] nanos) {
+		return Arrays.stream( nanos ).map( TimeUnit.NANOSECONDS::toMicros ).toArray();
+	}
+
+	@Entity(name = "AuditedAccount")
+	@Audited
+	public static class AuditedAccount {
+
+		@Id
+		private Long id;
+
+		private String name;
+
+		private long balance;
+
+		protected AuditedAccount() {
+		}
+
+		public AuditedAccount(Long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public long getBalance() {
+			return balance;
+		}
+
+		public void setBalance(long balance) {
+			this.balance = balance;
+		}
+	}
+
+}
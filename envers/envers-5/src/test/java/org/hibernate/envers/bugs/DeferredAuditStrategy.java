@@ -0,0 +1,114 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.envers.bugs;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.Session;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.envers.configuration.internal.AuditEntitiesConfiguration;
+import org.hibernate.envers.internal.entities.mapper.PersistentCollectionChangeData;
+import org.hibernate.envers.strategy.DefaultAuditStrategy;
+
+/**
+ * A {@link DefaultAuditStrategy} which does not write the audit rows in the flush of the audited transaction, but
+ * hands them over to the {@link DeferredAuditWriter} of the session factory once the transaction has committed.
+ *
+ * The revision entity is still written by the audited transaction, so revision numbers and timestamps keep the order
+ * of the business changes; only the {@code _AUD} rows are written later.  Audit rows of a transaction which rolls back
+ * are discarded.
+ *
+ * Envers creates one strategy per session factory, which starts its {@link DeferredAuditWriter} on first use.
+ *
+ * Enable it with:
+ * <pre>
+ * configuration.setProperty( EnversSettings.AUDIT_STRATEGY, DeferredAuditStrategy.class.getName() );
+ * </pre>
+ */
+public class DeferredAuditStrategy extends DefaultAuditStrategy {
+
+	private final Map<SessionImplementor, PendingAuditRecords> pendingRecords = new ConcurrentHashMap<>();
+
+	// Guarded by this
+	private DeferredAuditWriter writer;
+
+	synchronized DeferredAuditWriter getWriter(SessionFactoryImplementor sessionFactory) {
+		if ( writer == null ) {
+			writer = new DeferredAuditWriter( sessionFactory );
+		}
+		return writer;
+	}
+
+	@Override
+	public void perform(Session session, String entityName, AuditEntitiesConfiguration auditEntitiesConfiguration,
+			Serializable id, Object data, Object revision) {
+		if ( !defer( session, auditEntitiesConfiguration.getAuditEntityName( entityName ), data, revision ) ) {
+			super.perform( session, entityName, auditEntitiesConfiguration, id, data, revision );
+		}
+	}
+
+	@Override
+	public void performCollectionChange(Session session, String entityName, String propertyName,
+			AuditEntitiesConfiguration auditEntitiesConfiguration, PersistentCollectionChangeData persistentCollectionChangeData,
+			Object revision) {
+		if ( !defer( session, persistentCollectionChangeData.getEntityName(), persistentCollectionChangeData.getData(), revision ) ) {
+			super.performCollectionChange(
+					session, entityName, propertyName, auditEntitiesConfiguration, persistentCollectionChangeData, revision
+			);
+		}
+	}
+
+	/**
+	 * Adds the audit row to the records of the current transaction of the session.
+	 *
+	 * @return {@code false} if the session does not take part in a transaction, e.g. the temporary session Envers opens
+	 * when the flush mode is {@code MANUAL}, in which case the row has to be written right away.
+	 */
+	private boolean defer(Session session, String auditEntityName, Object data, Object revision) {
+		SessionImplementor sessionImplementor = (SessionImplementor) session;
+		if ( !sessionImplementor.isTransactionInProgress() ) {
+			return false;
+		}
+		pendingRecords.computeIfAbsent( sessionImplementor, s -> {
+			PendingAuditRecords records = new PendingAuditRecords( s, revision );
+			s.getActionQueue().registerProcess( records );
+			return records;
+		} ).transaction.add( new DeferredAuditWriter.AuditRecord( auditEntityName, data ) );
+		return true;
+	}
+
+	/**
+	 * The audit rows of a transaction, handed over to the writer once the transaction has committed, or discarded if
+	 * it rolls back.
+	 */
+	private class PendingAuditRecords implements AfterTransactionCompletionProcess {
+		private final SessionImplementor session;
+		// Obtained while the session factory is open, even if the transaction completes while it is closing
+		private final DeferredAuditWriter writer;
+		private final DeferredAuditWriter.AuditTransaction transaction;
+
+		private PendingAuditRecords(SessionImplementor session, Object revision) {
+			this.session = session;
+			this.writer = getWriter( session.getFactory() );
+			this.transaction = new DeferredAuditWriter.AuditTransaction( revision );
+		}
+
+		@Override
+		public void doAfterTransactionCompletion(boolean success, SharedSessionContractImplementor s) {
+			pendingRecords.remove( session );
+			if ( success ) {
+				writer.enqueue( transaction );
+			}
+		}
+	}
+
+}
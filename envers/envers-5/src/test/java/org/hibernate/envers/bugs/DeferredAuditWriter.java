@@ -0,0 +1,387 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.envers.bugs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.envers.boot.internal.EnversService;
+import org.hibernate.envers.exception.AuditException;
+import org.hibernate.envers.strategy.AuditStrategy;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.jboss.logging.Logger;
+
+/**
+ * Writes the audit rows deferred by {@link DeferredAuditStrategy}, on a background thread of the session factory.
+ * Each session factory has its own writer, held by its audit strategy.
+ *
+ * <ul>
+ *     <li>Ordering: the rows of each committed transaction are queued together, after the commit, and written by a
+ *     single thread in queue order.</li>
+ *     <li>Batching: the writer saves up to {@value #BATCH_SIZE} rows in one transaction, made of whole audited
+ *     transactions, so that the rows of a revision are always written together; set {@code hibernate.jdbc.batch_size}
+ *     too, so that the inserts are sent in JDBC batches.</li>
+ *     <li>Back-pressure: the queue holds up to {@value #QUEUE_SIZE} rows; once it is full, committing transactions
+ *     block until the writer catches up, so the audit lag stays bounded.</li>
+ *     <li>Failures: a batch which fails is retried once, then each of its audited transactions is written on its own.
+ *     The rows of the transactions which still fail are logged, counted in {@link #getFailedRecordCount()}, and
+ *     reported by the next {@link #flush(long, TimeUnit)}: their revisions are committed, but have no audit rows.</li>
+ *     <li>Shutdown: closing the session factory waits until the queued rows are written.  Rows of transactions
+ *     committing once the writer is closed, or interrupted while waiting for room in the queue, are written right away
+ *     on the committing thread.</li>
+ *     <li>Durability: queued rows only live in memory, they are lost if the JVM dies before they are written.</li>
+ * </ul>
+ */
+public class DeferredAuditWriter implements SessionFactoryObserver {
+
+	private static final Logger log = Logger.getLogger( DeferredAuditWriter.class );
+
+	public static final String QUEUE_SIZE = "hibernate.envers.deferred.queue_size";
+	public static final String BATCH_SIZE = "hibernate.envers.deferred.batch_size";
+
+	private static final int DEFAULT_QUEUE_SIZE = 10_000;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final int BATCH_ATTEMPTS = 2;
+	private static final long DRAIN_TIMEOUT_MILLIS = 60_000;
+
+	private final SessionFactoryImplementor sessionFactory;
+	private final int queueSize;
+	private final int batchSize;
+	private final Thread thread;
+
+	// Guarded by this
+	private final Deque<AuditTransaction> queue = new ArrayDeque<>();
+	private boolean running = true;
+	private long pendingRecordCount;
+	private long writtenRecordCount;
+	private long failedRecordCount;
+	private long failedTransactionCount;
+	// The failures which flush has not reported yet
+	private final List<String> unreportedRevisions = new ArrayList<>();
+	private RuntimeException unreportedCause;
+	private long[] lagNanos = new long[1024];
+	private int lagCount;
+
+	/**
+	 * The writer of the given session factory, which must use the {@link DeferredAuditStrategy}.
+	 */
+	public static DeferredAuditWriter forSessionFactory(SessionFactoryImplementor sessionFactory) {
+		AuditStrategy auditStrategy = sessionFactory.getServiceRegistry().getService( EnversService.class ).getAuditStrategy();
+		if ( !( auditStrategy instanceof DeferredAuditStrategy ) ) {
+			throw new IllegalStateException( "The session factory uses " + auditStrategy + ", not the deferred audit strategy" );
+		}
+		return ( (DeferredAuditStrategy) auditStrategy ).getWriter( sessionFactory );
+	}
+
+	DeferredAuditWriter(SessionFactoryImplementor sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		Map<String, Object> properties = sessionFactory.getProperties();
+		this.queueSize = ConfigurationHelper.getInt( QUEUE_SIZE, properties, DEFAULT_QUEUE_SIZE );
+		this.batchSize = ConfigurationHelper.getInt( BATCH_SIZE, properties, DEFAULT_BATCH_SIZE );
+		sessionFactory.addObserver( this );
+
+		this.thread = new Thread( this::writeLoop, "Deferred audit writer" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Queues the rows of a committed transaction, blocking while the queue is full.  Never throws: the transaction has
+	 * committed already, so rows which cannot be queued are written right away.
+	 */
+	void enqueue(AuditTransaction transaction) {
+		boolean queued = false;
+		boolean interrupted = false;
+		synchronized ( this ) {
+			// A transaction larger than the queue is still queued, once the queue is empty
+			while ( running && pendingRecordCount > 0 && pendingRecordCount + transaction.records.size() > queueSize ) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+					break;
+				}
+			}
+			if ( running && !interrupted ) {
+				queue.add( transaction );
+				pendingRecordCount += transaction.records.size();
+				queued = true;
+				notifyAll();
+			}
+		}
+		if ( !queued ) {
+			writeTransaction( transaction );
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		while ( true ) {
+			List<AuditTransaction> batch;
+			synchronized ( this ) {
+				while ( running && queue.isEmpty() ) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if ( queue.isEmpty() ) {
+					// Closed, and drained
+					return;
+				}
+				batch = nextBatch();
+			}
+			write( batch );
+			synchronized ( this ) {
+				pendingRecordCount -= recordCount( batch );
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Takes whole transactions from the queue, up to {@link #batchSize} rows unless the first transaction alone is
+	 * larger.
+	 */
+	private List<AuditTransaction> nextBatch() {
+		List<AuditTransaction> batch = new ArrayList<>();
+		int recordCount = 0;
+		while ( !queue.isEmpty() && ( batch.isEmpty() || recordCount + queue.peek().records.size() <= batchSize ) ) {
+			AuditTransaction transaction = queue.poll();
+			batch.add( transaction );
+			recordCount += transaction.records.size();
+		}
+		return batch;
+	}
+
+	private void write(List<AuditTransaction> batch) {
+		for ( int attempt = 1; attempt <= BATCH_ATTEMPTS; attempt++ ) {
+			try {
+				save( batch );
+				recordWritten( batch, System.nanoTime() );
+				return;
+			}
+			catch (RuntimeException e) {
+				log.warnf( e, "Unable to write %d audited transactions, attempt %d of %d", batch.size(), attempt, BATCH_ATTEMPTS );
+			}
+		}
+		// Isolates the failing transactions, so that they do not prevent the others from being written
+		for ( AuditTransaction transaction : batch ) {
+			writeTransaction( transaction );
+		}
+	}
+
+	private void writeTransaction(AuditTransaction transaction) {
+		List<AuditTransaction> batch = Collections.singletonList( transaction );
+		try {
+			save( batch );
+			recordWritten( batch, System.nanoTime() );
+		}
+		catch (RuntimeException e) {
+			log.errorf( e, "Unable to write the %d audit rows of revision %s: they are lost", transaction.records.size(), transaction.revision );
+			recordFailed( transaction, e );
+		}
+	}
+
+	private void save(List<AuditTransaction> batch) {
+		try ( Session session = sessionFactory.openSession() ) {
+			Transaction tx = session.beginTransaction();
+			try {
+				for ( AuditTransaction transaction : batch ) {
+					for ( AuditRecord record : transaction.records ) {
+						session.save( record.auditEntityName, record.data );
+					}
+				}
+				tx.commit();
+			}
+			finally {
+				if ( tx.isActive() ) {
+					tx.rollback();
+				}
+			}
+		}
+	}
+
+	private synchronized void recordWritten(List<AuditTransaction> batch, long writtenNanos) {
+		for ( AuditTransaction transaction : batch ) {
+			writtenRecordCount += transaction.records.size();
+			for ( AuditRecord record : transaction.records ) {
+				if ( lagCount == lagNanos.length ) {
+					lagNanos = Arrays.copyOf( lagNanos, lagCount * 2 );
+				}
+				lagNanos[lagCount++] = writtenNanos - record.createdNanos;
+			}
+		}
+	}
+
+	private synchronized void recordFailed(AuditTransaction transaction, RuntimeException cause) {
+		failedRecordCount += transaction.records.size();
+		failedTransactionCount++;
+		unreportedRevisions.add( transaction.revision );
+		if ( unreportedCause == null ) {
+			unreportedCause = cause;
+		}
+	}
+
+	private static int recordCount(List<AuditTransaction> batch) {
+		int recordCount = 0;
+		for ( AuditTransaction transaction : batch ) {
+			recordCount += transaction.records.size();
+		}
+		return recordCount;
+	}
+
+	/**
+	 * Waits until every queued row is written, or the timeout elapses.
+	 *
+	 * @return {@code true} if no row is left to write.
+	 */
+	public synchronized boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos( timeout );
+		while ( pendingRecordCount > 0 ) {
+			long remainingMillis = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+			if ( remainingMillis <= 0 ) {
+				return false;
+			}
+			wait( remainingMillis );
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until every queued row is written, then reports the transactions whose rows could not be written since the
+	 * previous flush.
+	 *
+	 * @throws AuditException if rows are still queued once the timeout elapses, or if the rows of some transactions could
+	 * not be written: their revisions are committed, but have no audit rows.
+	 */
+	public void flush(long timeout, TimeUnit unit) throws InterruptedException {
+		if ( !awaitDrained( timeout, unit ) ) {
+			throw new AuditException( getPendingRecordCount() + " audit rows are still queued after " + timeout + " " + unit );
+		}
+		synchronized ( this ) {
+			if ( !unreportedRevisions.isEmpty() ) {
+				AuditException exception = new AuditException(
+						"Unable to write the audit rows of revisions " + unreportedRevisions + ": they are lost",
+						unreportedCause
+				);
+				unreportedRevisions.clear();
+				unreportedCause = null;
+				throw exception;
+			}
+		}
+	}
+
+	/**
+	 * The time between the moment each written row was captured and the commit of the writer transaction.
+	 */
+	public synchronized long[] getLagNanos() {
+		return Arrays.copyOf( lagNanos, lagCount );
+	}
+
+	public synchronized long getPendingRecordCount() {
+		return pendingRecordCount;
+	}
+
+	public synchronized long getWrittenRecordCount() {
+		return writtenRecordCount;
+	}
+
+	public synchronized long getFailedRecordCount() {
+		return failedRecordCount;
+	}
+
+	public synchronized long getFailedTransactionCount() {
+		return failedTransactionCount;
+	}
+
+	public synchronized void resetStatistics() {
+		lagCount = 0;
+		writtenRecordCount = 0;
+		failedRecordCount = 0;
+		failedTransactionCount = 0;
+	}
+
+	@Override
+	public void sessionFactoryCreated(SessionFactory factory) {
+	}
+
+	@Override
+	public void sessionFactoryClosing(SessionFactory factory) {
+		synchronized ( this ) {
+			running = false;
+			notifyAll();
+		}
+		// The writer thread writes the queued rows before it stops
+		try {
+			thread.join( DRAIN_TIMEOUT_MILLIS );
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if ( thread.isAlive() ) {
+			log.warnf( "Closing the session factory with %d audit rows not written", getPendingRecordCount() );
+		}
+		synchronized ( this ) {
+			if ( !unreportedRevisions.isEmpty() ) {
+				log.errorf( "Closing the session factory without the audit rows of revisions %s", unreportedRevisions );
+			}
+		}
+	}
+
+	@Override
+	public void sessionFactoryClosed(SessionFactory factory) {
+	}
+
+	/**
+	 * The audit rows of a committed transaction, written together.
+	 */
+	static final class AuditTransaction {
+		private final String revision;
+		private final List<AuditRecord> records = new ArrayList<>();
+
+		AuditTransaction(Object revision) {
+			this.revision = String.valueOf( revision );
+		}
+
+		void add(AuditRecord record) {
+			records.add( record );
+		}
+	}
+
+	/**
+	 * An audit row, as built by Envers, and the time it was captured at.
+	 */
+	static final class AuditRecord {
+		private final String auditEntityName;
+		private final Object data;
+		private final long createdNanos = System.nanoTime();
+
+		AuditRecord(String auditEntityName, Object data) {
+			this.auditEntityName = auditEntityName;
+			this.data = data;
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.envers.bugs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.envers.AuditReaderFactory;
+import org.hibernate.envers.Audited;
+import org.hibernate.envers.configuration.EnversSettings;
+import org.hibernate.envers.exception.AuditException;
+import org.hibernate.envers.query.AuditEntity;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link DeferredAuditWriter} writes the rows of a revision all together or not at all, and reports
+ * the revisions it could not write, that rolled back transactions are not audited, that closing the session factory
+ * writes the queued rows, and that a rebuilt session factory gets a writer of its own.
+ */
+public class DeferredAuditWriterTestCase extends AbstractEnversTestCase {
+
+	private static final int ACCOUNTS = 50;
+	private static final int TRANSACTIONS = 100;
+	private static final int ACCOUNTS_PER_TRANSACTION = 10;
+
+	@Override
+	protected Class[] getAnnotatedClasses() {
+		return new Class[] { AuditedAccount.class };
+	}
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.SHOW_SQL, Boolean.FALSE.toString() );
+		configuration.setProperty( EnversSettings.AUDIT_STRATEGY, DeferredAuditStrategy.class.getName() );
+	}
+
+	@Override
+	protected void cleanupTest() throws Exception {
+		// Each test starts with an empty schema, and a writer of its own
+		rebuildSessionFactory();
+	}
+
+	@Test
+	public void failedWriteLeavesNoHalfWrittenRevision() throws Exception {
+		DeferredAuditWriter writer = DeferredAuditWriter.forSessionFactory( sessionFactory() );
+		try ( Session session = openSession() ) {
+			Transaction tx = session.beginTransaction();
+			for ( long id = 1; id <= 4; id++ ) {
+				session.persist( new AuditedAccount( id, "account" + id ) );
+			}
+			tx.commit();
+			writer.flush( 1, TimeUnit.MINUTES );
+
+			// Makes the deferred write of one audit row fail, after its transaction has committed
+			tx = session.beginTransaction();
+			session.createNativeQuery(
+					"alter table AuditedAccount_AUD add constraint no_rejected_name check (name <> 'rejected')"
+			).executeUpdate();
+			tx.commit();
+
+			updateInTransaction( session, 1L, 2L );
+			// The rows of accounts 3 and 4 form one revision: neither must be written
+			tx = session.beginTransaction();
+			session.get( AuditedAccount.class, 3L ).setName( "rejected" );
+			session.get( AuditedAccount.class, 4L ).setBalance( 1 );
+			tx.commit();
+			updateInTransaction( session, 1L, 4L );
+		}
+		try {
+			writer.flush( 1, TimeUnit.MINUTES );
+			fail( "The failed revision was not reported" );
+		}
+		catch (AuditException e) {
+			assertTrue( e.getMessage(), e.getMessage().contains( "DefaultRevisionEntity(id = 3," ) );
+		}
+		// Reported once
+		writer.flush( 1, TimeUnit.MINUTES );
+
+		assertEquals( 1, writer.getFailedTransactionCount() );
+		assertEquals( 2, writer.getFailedRecordCount() );
+		assertEquals( 8, writer.getWrittenRecordCount() );
+		try ( Session session = openSession() ) {
+			List<?> revisions = session.createNativeQuery( "select REV from REVINFO order by REV" ).list();
+			assertEquals( 4, revisions.size() );
+			long[] expectedRows = { 4, 2, 0, 2 };
+			for ( int i = 0; i < revisions.size(); i++ ) {
+				Number rows = (Number) session.createNativeQuery( "select count(*) from AuditedAccount_AUD where REV = :rev" )
+						.setParameter( "rev", revisions.get( i ) )
+						.getSingleResult();
+				assertEquals( "Audit rows of revision " + revisions.get( i ), expectedRows[i], rows.longValue() );
+			}
+		}
+	}
+
+	@Test
+	public void rolledBackTransactionIsNotAudited() throws Exception {
+		DeferredAuditWriter writer = DeferredAuditWriter.forSessionFactory( sessionFactory() );
+		try ( Session session = openSession() ) {
+			Transaction tx = session.beginTransaction();
+			session.persist( new AuditedAccount( 1L, "account1" ) );
+			session.persist( new AuditedAccount( 2L, "account2" ) );
+			tx.commit();
+		}
+		try ( Session session = openSession() ) {
+			Transaction tx = session.beginTransaction();
+			session.get( AuditedAccount.class, 1L ).setBalance( 1 );
+			session.flush();
+			tx.rollback();
+		}
+		try ( Session session = openSession() ) {
+			updateInTransaction( session, 2L );
+		}
+		writer.flush( 1, TimeUnit.MINUTES );
+
+		assertEquals( 0, writer.getPendingRecordCount() );
+		assertEquals( 3, writer.getWrittenRecordCount() );
+		assertEquals( 3, countAuditRows() );
+		assertEquals( 1, getAuditReader().getRevisions( AuditedAccount.class, 1L ).size() );
+		assertEquals( 2, getAuditReader().getRevisions( AuditedAccount.class, 2L ).size() );
+	}
+
+	@Test
+	public void closingWritesQueuedRows() throws Exception {
+		// Does not drop the schema on close, so that the rows written while closing can be counted afterwards
+		rebuildSessionFactory( configuration -> configuration.setProperty( AvailableSettings.HBM2DDL_AUTO, "create" ) );
+		DeferredAuditWriter writer = DeferredAuditWriter.forSessionFactory( sessionFactory() );
+		try ( Session session = openSession() ) {
+			Transaction tx = session.beginTransaction();
+			for ( long id = 1; id <= ACCOUNTS; id++ ) {
+				session.persist( new AuditedAccount( id, "account" + id ) );
+			}
+			tx.commit();
+			for ( int t = 0; t < TRANSACTIONS; t++ ) {
+				Long[] ids = new Long[ACCOUNTS_PER_TRANSACTION];
+				for ( int j = 0; j < ACCOUNTS_PER_TRANSACTION; j++ ) {
+					ids[j] = (long) t * ACCOUNTS_PER_TRANSACTION % ACCOUNTS + j + 1;
+				}
+				updateInTransaction( session, ids );
+			}
+		}
+
+		// Closes the session factory without waiting for the writer, then opens the same database again
+		rebuildSessionFactory( configuration -> configuration.setProperty( AvailableSettings.HBM2DDL_AUTO, "none" ) );
+
+		writer.flush( 1, TimeUnit.MINUTES );
+		long expectedRows = ACCOUNTS + TRANSACTIONS * ACCOUNTS_PER_TRANSACTION;
+		assertEquals( expectedRows, writer.getWrittenRecordCount() );
+		assertEquals( expectedRows, countAuditRows() );
+		// The rebuilt session factory has a writer of its own
+		DeferredAuditWriter rebuiltWriter = DeferredAuditWriter.forSessionFactory( sessionFactory() );
+		assertNotSame( writer, rebuiltWriter );
+		assertSame( rebuiltWriter, DeferredAuditWriter.forSessionFactory( sessionFactory() ) );
+	}
+
+	/**
+	 * Adds 1 to the balance of the given accounts, in one transaction.
+	 */
+	private static void updateInTransaction(Session session, Long... ids) {
+		Transaction tx = session.beginTransaction();
+		for ( Long id : ids ) {
+			AuditedAccount account = session.get( AuditedAccount.class, id );
+			account.setBalance( account.getBalance() + 1 );
+		}
+		tx.commit();
+	}
+
+	private long countAuditRows() {
+		try ( Session session = openSession() ) {
+			return (Long) AuditReaderFactory.get( session ).createQuery()
+					.forRevisionsOfEntity( AuditedAccount.class, false, true )
+					.addProjection( AuditEntity.id().count() )
+					.getSingleResult();
+		}
+	}
+
+	@Entity(name = "AuditedAccount")
+	@Audited
+	public static class AuditedAccount {
+
+		@Id
+		private Long id;
+
+		private String name;
+
+		private long balance;
+
+		protected AuditedAccount() {
+		}
+
+		public AuditedAccount(Long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public long getBalance() {
+			return balance;
+		}
+
+		public void setBalance(long balance) {
+			this.balance = balance;
+		}
+	}
+
+}
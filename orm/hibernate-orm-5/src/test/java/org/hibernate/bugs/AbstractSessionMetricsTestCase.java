@@ -0,0 +1,30 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.testing.junit4.BaseCoreFunctionalTestCase;
+import org.junit.Rule;
+
+/**
+ * Extend this class instead of {@link BaseCoreFunctionalTestCase}, e.g. in {@link ORMUnitTestCase}, to write the
+ * metrics of the sessions opened by each test to {@code target/session-metrics/}, as JSON.
+ */
+public abstract class AbstractSessionMetricsTestCase extends BaseCoreFunctionalTestCase {
+
+	@Rule
+	public SessionMetricsRule sessionMetrics = new SessionMetricsRule();
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.AUTO_SESSION_EVENTS_LISTENER, SessionMetricsListener.class.getName() );
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@link BenchmarkResultStore} reads back the runs it writes.
+ */
+public class BenchmarkResultStoreTestCase {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws Exception {
+		BenchmarkResultStore store = new BenchmarkResultStore( temporaryFolder.newFolder(), 1 );
+		String scenario = "query \"by name\" in C:\\temp\\x\ty\u0001";
+		long[] samples = { 3, 1, 4, 1, 5, 9, 2, 6 };
+
+		assertNull( store.record( scenario, "us", samples ) );
+		assertNotNull( store.record( scenario, "us", samples ) );
+
+		List<BenchmarkResultStore.Run> history = store.getHistory( scenario );
+		assertEquals( 2, history.size() );
+		for ( BenchmarkResultStore.Run run : history ) {
+			assertEquals( scenario, run.getScenario() );
+			assertEquals( "us", run.getUnit() );
+			assertArrayEquals( samples, run.getSamples() );
+		}
+	}
+
+	@Test
+	public void baselineOfSeveralRuns() throws Exception {
+		BenchmarkResultStore store = new BenchmarkResultStore( temporaryFolder.newFolder(), 3 );
+		long[] fast = { 10, 11, 12, 13, 14 };
+		long[] slow = { 30, 31, 32, 33, 34 };
+
+		// Not checked until three runs are recorded
+		assertNull( store.record( "scenario", "us", fast ) );
+		assertNull( store.record( "scenario", "us", fast ) );
+		assertNull( store.record( "scenario", "us", fast ) );
+		assertTrue( store.record( "scenario", "us", slow ).isRegression() );
+		// The baseline is now made of the last three runs, one of which is slow
+		assertFalse( store.record( "scenario", "us", slow ).isRegression() );
+		assertEquals( 5, store.getHistory( "scenario" ).size() );
+	}
+
+	@Test
+	public void formatAndParse() {
+		BenchmarkResultStore.Run run = new BenchmarkResultStore.Run( "2024-01-01T00:00:00Z", "a\"b\\c", "ms", new long[] { -1, 0, 42 } );
+		String line = BenchmarkResultStore.format( run );
+		assertEquals( "{\"timestamp\":\"2024-01-01T00:00:00Z\",\"scenario\":\"a\\\"b\\\\c\",\"unit\":\"ms\",\"samples\":[-1,0,42]}", line );
+
+		BenchmarkResultStore.Run parsed = BenchmarkResultStore.parse( line );
+		assertEquals( run.getTimestamp(), parsed.getTimestamp() );
+		assertEquals( run.getScenario(), parsed.getScenario() );
+		assertEquals( run.getUnit(), parsed.getUnit() );
+		assertArrayEquals( run.getSamples(), parsed.getSamples() );
+	}
+
+	@Test
+	public void parseIgnoresWhitespaceAndUnknownAttributes() {
+		BenchmarkResultStore.Run parsed = BenchmarkResultStore.parse(
+				"{ \"host\": \"ci\", \"timestamp\": \"t\", \"scenario\": \"s\\u0041\\/\", \"unit\": \"us\", \"samples\": [ ], \"runs\": 3 }"
+		);
+		assertEquals( "sA/", parsed.getScenario() );
+		assertEquals( 0, parsed.getSamples().length );
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void recordRejectsEmptySamples() throws Exception {
+		new BenchmarkResultStore( temporaryFolder.newFolder(), 1 ).record( "empty", "us", new long[0] );
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parseRejectsTruncatedLines() {
+		BenchmarkResultStore.parse( "{\"timestamp\":\"t\",\"scenario\":\"s\",\"unit\":\"us\",\"samples\":[1,2" );
+	}
+}
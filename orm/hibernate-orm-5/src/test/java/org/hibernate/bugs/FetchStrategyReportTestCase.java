@@ -0,0 +1,362 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import static org.hibernate.testing.transaction.TransactionUtil.doInHibernate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityGraph;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.Table;
+
+import org.hibernate.Session;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+import org.hibernate.annotations.Immutable;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.testing.junit4.BaseCoreFunctionalTestCase;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template loads the same entity graph with several fetch strategies and ranks them by number of statements,
+ * number of rows read and latency.
+ *
+ * Replace the entities below with your own model and {@link #visit(Collection)} with the navigation done by your
+ * use case.  The {@code default_batch_fetch_size} sweep gives the same results as an equivalent {@code @BatchSize}
+ * on each association.  Subselect fetching is measured through {@link SubselectFetchAuthor}, a read-only mapping of
+ * the author table whose books are annotated with {@code @Fetch(FetchMode.SUBSELECT)}.
+ *
+ * Each strategy runs {@link #WARMUP_ITERATIONS} times before it is measured, and every measured iteration must
+ * execute the same statements and read the same rows; the latency is the median of the measured iterations.
+ */
+public class FetchStrategyReportTestCase extends BaseCoreFunctionalTestCase {
+
+	private static final Logger log = Logger.getLogger( FetchStrategyReportTestCase.class );
+
+	private static final int[] BATCH_FETCH_SIZES = { 4, 16, 64 };
+	private static final int AUTHORS = 50;
+	private static final int BOOKS_PER_AUTHOR = 10;
+	private static final int PUBLISHERS = 20;
+	private static final int WARMUP_ITERATIONS = 10;
+	private static final int ITERATIONS = 20;
+
+	private final JdbcTrafficMonitor trafficMonitor = new JdbcTrafficMonitor();
+
+	@Override
+	protected Class[] getAnnotatedClasses() {
+		return new Class[] {
+				FetchAuthor.class,
+				SubselectFetchAuthor.class,
+				FetchBook.class,
+				FetchPublisher.class
+		};
+	}
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.SHOW_SQL, Boolean.FALSE.toString() );
+		configuration.setProperty( "hibernate.session.events.log", Boolean.FALSE.toString() );
+	}
+
+	@Override
+	protected void prepareBasicRegistryBuilder(StandardServiceRegistryBuilder serviceRegistryBuilder) {
+		super.prepareBasicRegistryBuilder( serviceRegistryBuilder );
+
+		trafficMonitor.applyTo( serviceRegistryBuilder );
+	}
+
+	@Test
+	public void fetchStrategyReport() {
+		List<FetchResult> results = new ArrayList<>();
+
+		persistEntities();
+		results.add( measure( "select (lazy, N+1)", session -> visit( findAuthors( session ) ) ) );
+		results.add( measure( "join fetch", session -> visit( session.createQuery(
+				"select distinct a from FetchAuthor a left join fetch a.books b left join fetch b.publisher",
+				FetchAuthor.class
+		).list() ) ) );
+		results.add( measure( "entity graph", session -> {
+			EntityGraph<FetchAuthor> graph = session.createEntityGraph( FetchAuthor.class );
+			graph.addSubgraph( "books" ).addAttributeNodes( "publisher" );
+			return visit( session.createQuery( "select distinct a from FetchAuthor a", FetchAuthor.class )
+					.setHint( "javax.persistence.fetchgraph", graph )
+					.list() );
+		} ) );
+		results.add( measure( "subselect", session -> visit( session.createQuery(
+				"select a from SubselectFetchAuthor a",
+				SubselectFetchAuthor.class
+		).list() ) ) );
+
+		for ( int batchFetchSize : BATCH_FETCH_SIZES ) {
+			rebuildSessionFactory( configuration -> configuration.setProperty(
+					AvailableSettings.DEFAULT_BATCH_FETCH_SIZE,
+					String.valueOf( batchFetchSize )
+			) );
+			persistEntities();
+			results.add( measure(
+					"default_batch_fetch_size=" + batchFetchSize,
+					session -> visit( findAuthors( session ) )
+			) );
+		}
+
+		results.sort( Comparator.comparingLong( (FetchResult result) -> result.statements )
+				.thenComparingLong( result -> result.rows )
+				.thenComparingLong( result -> result.latencyMicros ) );
+		StringBuilder report = new StringBuilder( "Fetch strategies, best first:" );
+		for ( int i = 0; i < results.size(); i++ ) {
+			report.append( String.format( "%n%2d. %s", i + 1, results.get( i ) ) );
+		}
+		log.info( report );
+
+		assertEquals( 1, results.get( 0 ).statements );
+	}
+
+	private FetchResult measure(String strategy, Function<Session, Integer> useCase) {
+		FetchResult result = new FetchResult( strategy );
+		for ( int i = 0; i < WARMUP_ITERATIONS; i++ ) {
+			assertEquals( AUTHORS * BOOKS_PER_AUTHOR, (int) doInHibernate( this::sessionFactory, useCase::apply ) );
+		}
+
+		long[] latencyMicros = new long[ITERATIONS];
+		for ( int i = 0; i < ITERATIONS; i++ ) {
+			trafficMonitor.reset();
+			long start = System.nanoTime();
+			int visited = doInHibernate( this::sessionFactory, useCase::apply );
+			latencyMicros[i] = TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - start );
+			assertEquals( AUTHORS * BOOKS_PER_AUTHOR, visited );
+
+			// Each iteration runs in a new session, so all of them must hit the database the same way
+			if ( i == 0 ) {
+				result.statements = trafficMonitor.getStatementCount();
+				result.rows = trafficMonitor.getRowCount();
+			}
+			else {
+				assertEquals( strategy + ", statements", result.statements, trafficMonitor.getStatementCount() );
+				assertEquals( strategy + ", rows", result.rows, trafficMonitor.getRowCount() );
+			}
+		}
+		assertTrue( result.statements > 0 );
+		long[] sorted = latencyMicros.clone();
+		Arrays.sort( sorted );
+		result.latencyMicros = sorted[sorted.length / 2];
+		BenchmarkResultStore.getDefault().record( "FetchStrategyReportTestCase." + strategy, "us", latencyMicros );
+		return result;
+	}
+
+	private static List<FetchAuthor> findAuthors(Session session) {
+		return session.createQuery( "select a from FetchAuthor a", FetchAuthor.class ).list();
+	}
+
+	/**
+	 * The navigation done by the use case; returns the number of books visited.
+	 */
+	private static int visit(Collection<? extends Author> authors) {
+		int visited = 0;
+		for ( Author author : authors ) {
+			for ( FetchBook book : author.getBooks() ) {
+				book.getPublisher().getName();
+				visited++;
+			}
+		}
+		return visited;
+	}
+
+	private void persistEntities() {
+		doInHibernate( this::sessionFactory, session -> {
+			List<FetchPublisher> publishers = new ArrayList<>();
+			for ( long id = 1; id <= PUBLISHERS; id++ ) {
+				FetchPublisher publisher = new FetchPublisher( id, "publisher_" + id );
+				session.persist( publisher );
+				publishers.add( publisher );
+			}
+			long bookId = 1;
+			for ( long id = 1; id <= AUTHORS; id++ ) {
+				FetchAuthor author = new FetchAuthor( id, "author_" + id );
+				session.persist( author );
+				for ( int i = 0; i < BOOKS_PER_AUTHOR; i++ ) {
+					session.persist( new FetchBook(
+							bookId,
+							"book_" + bookId,
+							author,
+							publishers.get( (int) ( bookId % PUBLISHERS ) )
+					) );
+					bookId++;
+				}
+			}
+		} );
+	}
+
+	private static class FetchResult {
+		private final String strategy;
+		private long statements;
+		private long rows;
+		private long latencyMicros;
+
+		private FetchResult(String strategy) {
+			this.strategy = strategy;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "%-30s %5d statements, %6d rows, p50 %8d us", strategy, statements, rows, latencyMicros );
+		}
+	}
+
+	public interface Author {
+		List<FetchBook> getBooks();
+	}
+
+	@Entity(name = "FetchAuthor")
+	public static class FetchAuthor implements Author {
+
+		@Id
+		private Long id;
+
+		private String name;
+
+		@OneToMany(mappedBy = "author")
+		private List<FetchBook> books = new ArrayList<>();
+
+		protected FetchAuthor() {
+		}
+
+		public FetchAuthor(Long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public List<FetchBook> getBooks() {
+			return books;
+		}
+	}
+
+	/**
+	 * The authors of {@link FetchAuthor}, read through a mapping which loads their books with subselect fetching:
+	 * one query loads the books of all the authors returned by the query which loaded the first of them.
+	 */
+	@Entity(name = "SubselectFetchAuthor")
+	@Table(name = "FetchAuthor")
+	@Immutable
+	public static class SubselectFetchAuthor implements Author {
+
+		@Id
+		private Long id;
+
+		private String name;
+
+		@OneToMany
+		@JoinColumn(name = "author_id", insertable = false, updatable = false)
+		@Fetch(FetchMode.SUBSELECT)
+		private List<FetchBook> books = new ArrayList<>();
+
+		protected SubselectFetchAuthor() {
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public List<FetchBook> getBooks() {
+			return books;
+		}
+	}
+
+	@Entity(name = "FetchBook")
+	public static class FetchBook {
+
+		@Id
+		private Long id;
+
+		private String title;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		private FetchAuthor author;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		private FetchPublisher publisher;
+
+		protected FetchBook() {
+		}
+
+		public FetchBook(Long id, String title, FetchAuthor author, FetchPublisher publisher) {
+			this.id = id;
+			this.title = title;
+			this.author = author;
+			this.publisher = publisher;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public FetchPublisher getPublisher() {
+			return publisher;
+		}
+	}
+
+	@Entity(name = "FetchPublisher")
+	public static class FetchPublisher {
+
+		@Id
+		private Long id;
+
+		private String name;
+
+		protected FetchPublisher() {
+		}
+
+		public FetchPublisher(Long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
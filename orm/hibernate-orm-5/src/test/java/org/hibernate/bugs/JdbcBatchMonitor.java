@@ -0,0 +1,158 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.engine.jdbc.batch.internal.BatchBuilderImpl;
+import org.hibernate.engine.jdbc.batch.internal.BatchBuilderInitiator;
+import org.hibernate.engine.jdbc.batch.internal.BatchingBatch;
+import org.hibernate.engine.jdbc.batch.spi.Batch;
+import org.hibernate.engine.jdbc.batch.spi.BatchKey;
+import org.hibernate.engine.jdbc.batch.spi.BatchObserver;
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+
+/**
+ * Records the size of every JDBC batch actually sent to the database.
+ *
+ * Register it with {@link #applyTo(StandardServiceRegistryBuilder)}: it then replaces the default {@code BatchBuilder} and still
+ * honors {@code hibernate.jdbc.batch_size}.  When batching is disabled, each statement is executed on its own and is
+ * recorded as a batch of one.  Statements which never go through a batch, e.g. inserts of entities using IDENTITY
+ * generation, are not recorded.
+ */
+public class JdbcBatchMonitor extends BatchBuilderImpl {
+
+	private final List<Integer> batchSizes = new ArrayList<>();
+
+	public void applyTo(StandardServiceRegistryBuilder serviceRegistryBuilder) {
+		serviceRegistryBuilder.applySetting( BatchBuilderInitiator.BUILDER, this );
+	}
+
+	@Override
+	public Batch buildBatch(BatchKey key, JdbcCoordinator jdbcCoordinator) {
+		return new MonitoredBatch( super.buildBatch( key, jdbcCoordinator ) );
+	}
+
+	public synchronized List<Integer> getBatchSizes() {
+		return new ArrayList<>( batchSizes );
+	}
+
+	/**
+	 * Returns the number of batches sent, per batch size.
+	 */
+	public synchronized SortedMap<Integer, Integer> getBatchSizeDistribution() {
+		SortedMap<Integer, Integer> distribution = new TreeMap<>();
+		for ( int size : batchSizes ) {
+			distribution.merge( size, 1, Integer::sum );
+		}
+		return distribution;
+	}
+
+	public synchronized int getBatchCount() {
+		return batchSizes.size();
+	}
+
+	public synchronized int getMaxBatchSize() {
+		int max = 0;
+		for ( int size : batchSizes ) {
+			max = Math.max( max, size );
+		}
+		return max;
+	}
+
+	public synchronized double getAverageBatchSize() {
+		if ( batchSizes.isEmpty() ) {
+			return 0;
+		}
+		long total = 0;
+		for ( int size : batchSizes ) {
+			total += size;
+		}
+		return (double) total / batchSizes.size();
+	}
+
+	public synchronized void reset() {
+		batchSizes.clear();
+	}
+
+	private synchronized void record(int size) {
+		batchSizes.add( size );
+	}
+
+	private class MonitoredBatch implements Batch, BatchObserver {
+
+		private final Batch delegate;
+		private final boolean batching;
+		private int pendingStatements;
+
+		private MonitoredBatch(Batch delegate) {
+			this.delegate = delegate;
+			this.batching = delegate instanceof BatchingBatch;
+			delegate.addObserver( this );
+		}
+
+		@Override
+		public BatchKey getKey() {
+			return delegate.getKey();
+		}
+
+		@Override
+		public void addObserver(BatchObserver observer) {
+			delegate.addObserver( observer );
+		}
+
+		@Override
+		public PreparedStatement getBatchStatement(String sql, boolean callable) {
+			return delegate.getBatchStatement( sql, callable );
+		}
+
+		@Override
+		public void addToBatch() {
+			if ( batching ) {
+				pendingStatements++;
+			}
+			else {
+				record( 1 );
+			}
+			delegate.addToBatch();
+		}
+
+		@Override
+		public void execute() {
+			delegate.execute();
+		}
+
+		@Override
+		public void release() {
+			delegate.release();
+			// Releasing the batch drops its observers, but the JdbcCoordinator may keep using it
+			delegate.addObserver( this );
+		}
+
+		@Override
+		public void batchExplicitlyExecuted() {
+			flushPendingStatements();
+		}
+
+		@Override
+		public void batchImplicitlyExecuted() {
+			flushPendingStatements();
+		}
+
+		private void flushPendingStatements() {
+			if ( pendingStatements > 0 ) {
+				record( pendingStatements );
+				pendingStatements = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.testing.jdbc.ConnectionProviderDelegate;
+
+/**
+ * Counts the statements executed and the result set rows read through the JDBC connections of a SessionFactory.
+ *
+ * Register it with {@link #applyTo(StandardServiceRegistryBuilder)} each time the service registry is built: the
+ * counters survive SessionFactory rebuilds, while the underlying connection provider does not.
+ */
+public class JdbcTrafficMonitor {
+
+	private final AtomicLong statementCount = new AtomicLong();
+	private final AtomicLong rowCount = new AtomicLong();
+
+	public void applyTo(StandardServiceRegistryBuilder serviceRegistryBuilder) {
+		serviceRegistryBuilder.applySetting( AvailableSettings.CONNECTION_PROVIDER, new MonitoredConnectionProvider() );
+	}
+
+	public long getStatementCount() {
+		return statementCount.get();
+	}
+
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	public void reset() {
+		statementCount.set( 0 );
+		rowCount.set( 0 );
+	}
+
+	private <T> T monitor(T target, Class<T> type) {
+		return type.cast( Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { type },
+				new MonitoringHandler( target )
+		) );
+	}
+
+	private class MonitoredConnectionProvider extends ConnectionProviderDelegate {
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			return monitor( super.getConnection(), Connection.class );
+		}
+
+		@Override
+		public void closeConnection(Connection connection) throws SQLException {
+			// Hand the pool back the connection it created
+			super.closeConnection( (Connection) ( (MonitoringHandler) Proxy.getInvocationHandler( connection ) ).target );
+		}
+	}
+
+	private class MonitoringHandler implements InvocationHandler {
+
+		private final Object target;
+
+		private MonitoringHandler(Object target) {
+			this.target = target;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result;
+			try {
+				result = method.invoke( target, args );
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+
+			String name = method.getName();
+			if ( target instanceof Statement && name.startsWith( "execute" ) ) {
+				statementCount.incrementAndGet();
+			}
+			else if ( target instanceof ResultSet && name.equals( "next" ) && Boolean.TRUE.equals( result ) ) {
+				rowCount.incrementAndGet();
+			}
+
+			if ( result instanceof ResultSet ) {
+				return monitor( (ResultSet) result, ResultSet.class );
+			}
+			else if ( result instanceof Statement && !( target instanceof ResultSet ) ) {
+				return monitor( (Statement) result, (Class<Statement>) method.getReturnType() );
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import static org.hibernate.testing.transaction.TransactionUtil.doInHibernate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.Session;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.query.spi.QueryPlanCache;
+import org.hibernate.query.Query;
+import org.hibernate.testing.junit4.BaseCoreFunctionalTestCase;
+import org.jboss.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This template measures how much time goes to translating HQL compared to executing it, and how the query plan
+ * cache behaves for dynamic IN lists.
+ *
+ * Replace the {@link QueryPlanEntity} mapping and the named queries in {@link #QUERIES} with the ones from your application,
+ * then compare the reported numbers for each {@code hibernate.query.plan_cache_max_size} and
+ * {@code hibernate.query.in_clause_parameter_padding} combination.
+ */
+public class QueryPlanCacheBenchmarkTestCase extends BaseCoreFunctionalTestCase {
+
+	private static final Logger log = Logger.getLogger( QueryPlanCacheBenchmarkTestCase.class );
+
+	// Queries by name; the names identify the queries in the benchmark history, so keep them when editing a query
+	private static final Map<String, String> QUERIES = new LinkedHashMap<>();
+
+	static {
+		QUERIES.put( "all", "select e from QueryPlanEntity e" );
+		QUERIES.put( "byName", "select e from QueryPlanEntity e where e.name = :name" );
+		QUERIES.put(
+				"countByName",
+				"select e.name, count(e) from QueryPlanEntity e where e.id > :id group by e.name order by e.name"
+		);
+	}
+
+	private static final int[] PLAN_CACHE_MAX_SIZES = { 16, 128, 2048 };
+	private static final int MAX_IN_LIST_SIZE = 100;
+	private static final int WARMUP_ITERATIONS = 50;
+	private static final int ITERATIONS = 50;
+
+	private QueryPlanCacheMonitor monitor;
+
+	@Override
+	protected Class[] getAnnotatedClasses() {
+		return new Class[] {
+				QueryPlanEntity.class
+		};
+	}
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.SHOW_SQL, Boolean.FALSE.toString() );
+		configuration.setProperty( "hibernate.session.events.log", Boolean.FALSE.toString() );
+	}
+
+	@Before
+	public void startMonitor() {
+		monitor = new QueryPlanCacheMonitor();
+	}
+
+	@After
+	public void stopMonitor() {
+		monitor.close();
+	}
+
+	@Test
+	public void queryTranslationCost() {
+		persistEntities();
+
+		QueryPlanCache queryPlanCache = sessionFactory().getQueryPlanCache();
+		for ( Map.Entry<String, String> namedQuery : QUERIES.entrySet() ) {
+			String hql = namedQuery.getValue();
+			for ( int i = 0; i < WARMUP_ITERATIONS; i++ ) {
+				queryPlanCache.cleanup();
+				queryPlanCache.getHQLQueryPlan( hql, false, Collections.emptyMap() );
+				doInHibernate( this::sessionFactory, session -> {
+					return createQuery( session, hql ).list();
+				} );
+			}
+
+			long[] translationMicros = new long[ITERATIONS];
+			long translationNanos = 0;
+			long lookupNanos = 0;
+			for ( int i = 0; i < ITERATIONS; i++ ) {
+				queryPlanCache.cleanup();
+
+				long start = System.nanoTime();
+				queryPlanCache.getHQLQueryPlan( hql, false, Collections.emptyMap() );
+				long elapsed = System.nanoTime() - start;
+				translationMicros[i] = TimeUnit.NANOSECONDS.toMicros( elapsed );
+				translationNanos += elapsed;
+
+				start = System.nanoTime();
+				queryPlanCache.getHQLQueryPlan( hql, false, Collections.emptyMap() );
+				lookupNanos += System.nanoTime() - start;
+			}
+
+			long executionNanos = 0;
+			for ( int i = 0; i < ITERATIONS; i++ ) {
+				executionNanos += doInHibernate( this::sessionFactory, session -> {
+					Query<?> query = createQuery( session, hql );
+					// The plan is cached at this point, so this is mostly execution time
+					long start = System.nanoTime();
+					query.list();
+					return System.nanoTime() - start;
+				} );
+			}
+
+			log.infof(
+					"[%s] translation: %d us, cached lookup: %d us, execution: %d us (averages over %d runs)",
+					hql,
+					TimeUnit.NANOSECONDS.toMicros( translationNanos / ITERATIONS ),
+					TimeUnit.NANOSECONDS.toMicros( lookupNanos / ITERATIONS ),
+					TimeUnit.NANOSECONDS.toMicros( executionNanos / ITERATIONS ),
+					ITERATIONS
+			);
+			BenchmarkResultStore.getDefault().record(
+					"QueryPlanCacheBenchmarkTestCase.translation." + namedQuery.getKey(),
+					"us",
+					translationMicros
+			);
+		}
+	}
+
+	private static Query<?> createQuery(Session session, String hql) {
+		Query<?> query = session.createQuery( hql );
+		if ( hql.contains( ":name" ) ) {
+			query.setParameter( "name", "name_1" );
+		}
+		if ( hql.contains( ":id" ) ) {
+			query.setParameter( "id", 0L );
+		}
+		return query;
+	}
+
+	@Test
+	public void inListPlanCacheSweep() {
+		for ( int maxSize : PLAN_CACHE_MAX_SIZES ) {
+			long missesWithoutPadding = runInListScenario( maxSize, false );
+			long missesWithPadding = runInListScenario( maxSize, true );
+			assertTrue( missesWithPadding <= missesWithoutPadding );
+		}
+	}
+
+	private long runInListScenario(int maxSize, boolean padding) {
+		rebuildSessionFactory( configuration -> {
+			configuration.setProperty( AvailableSettings.QUERY_PLAN_CACHE_MAX_SIZE, String.valueOf( maxSize ) );
+			configuration.setProperty( AvailableSettings.IN_CLAUSE_PARAMETER_PADDING, String.valueOf( padding ) );
+		} );
+		persistEntities();
+		monitor.reset();
+
+		long start = System.nanoTime();
+		// Two passes: the second one shows whether the plans survived the first one
+		for ( int pass = 0; pass < 2; pass++ ) {
+			for ( int size = 1; size <= MAX_IN_LIST_SIZE; size++ ) {
+				List<Long> ids = new ArrayList<>( size );
+				for ( long id = 1; id <= size; id++ ) {
+					ids.add( id );
+				}
+				List<QueryPlanEntity> result = doInHibernate( this::sessionFactory, session -> {
+					return session.createQuery( "select e from QueryPlanEntity e where e.id in :ids", QueryPlanEntity.class )
+							.setParameterList( "ids", ids )
+							.list();
+				} );
+				assertEquals( size, result.size() );
+			}
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+		monitor.assertRecorded();
+
+		log.infof(
+				"plan_cache_max_size=%d, in_clause_parameter_padding=%s: %d hits, %d misses, %d cached plans, %d ms",
+				maxSize,
+				padding,
+				monitor.getHitCount(),
+				monitor.getMissCount(),
+				QueryPlanCacheMonitor.getCacheSize( sessionFactory() ),
+				elapsedMillis
+		);
+		return monitor.getMissCount();
+	}
+
+	private void persistEntities() {
+		doInHibernate( this::sessionFactory, session -> {
+			for ( long id = 1; id <= MAX_IN_LIST_SIZE; id++ ) {
+				session.persist( new QueryPlanEntity( id, "name_" + ( id % 10 ) ) );
+			}
+		} );
+	}
+
+	@Override
+	protected boolean isCleanupTestDataRequired() {
+		return true;
+	}
+
+	@Entity(name = "QueryPlanEntity")
+	public static class QueryPlanEntity {
+
+		@Id
+		private Long id;
+
+		private String name;
+
+		protected QueryPlanEntity() {
+		}
+
+		public QueryPlanEntity(Long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
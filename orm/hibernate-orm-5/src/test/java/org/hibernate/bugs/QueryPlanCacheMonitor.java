@@ -0,0 +1,115 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.hibernate.engine.query.spi.QueryPlanCache;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+/**
+ * Counts HQL query plan cache hits and misses of a SessionFactory.
+ *
+ * ORM 5.2 does not expose query plan cache statistics, so hits and misses are derived from the TRACE messages
+ * logged by {@link QueryPlanCache}, and the cache size is read from its internal map.  Both rely on ORM internals, as
+ * of 5.2.18: call {@link #assertRecorded()} after a workload, so that a changed message fails instead of reporting
+ * zeros.
+ * Call {@link #close()} once done, so the logger goes back to its configured level.
+ */
+public class QueryPlanCacheMonitor extends AppenderSkeleton {
+
+	private static final String HIT_MESSAGE = "Located HQL query plan in cache";
+	private static final String MISS_MESSAGE = "Unable to locate HQL query plan in cache";
+
+	private final Logger logger = Logger.getLogger( QueryPlanCache.class );
+	private final Level originalLevel;
+	private final boolean originalAdditivity;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public QueryPlanCacheMonitor() {
+		originalLevel = logger.getLevel();
+		originalAdditivity = logger.getAdditivity();
+		// Keep the TRACE messages away from the console appender
+		logger.setAdditivity( false );
+		logger.setLevel( Level.TRACE );
+		logger.addAppender( this );
+	}
+
+	@Override
+	protected void append(LoggingEvent event) {
+		String message = event.getRenderedMessage();
+		if ( message == null ) {
+			return;
+		}
+		if ( message.startsWith( HIT_MESSAGE ) ) {
+			hitCount.incrementAndGet();
+		}
+		else if ( message.startsWith( MISS_MESSAGE ) ) {
+			missCount.incrementAndGet();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Fails if neither a hit nor a miss was recorded since the last {@link #reset()}, which happens when the messages
+	 * logged by {@link QueryPlanCache} no longer match the ones expected here.
+	 */
+	public void assertRecorded() {
+		if ( hitCount.get() + missCount.get() == 0 ) {
+			throw new IllegalStateException(
+					"No query plan cache hit or miss was recorded; check the messages logged by "
+							+ QueryPlanCache.class.getName() + " in this ORM version"
+			);
+		}
+	}
+
+	public void reset() {
+		hitCount.set( 0 );
+		missCount.set( 0 );
+	}
+
+	/**
+	 * Returns the number of plans (HQL, filter and native) currently held by the query plan cache.
+	 */
+	public static int getCacheSize(SessionFactoryImplementor sessionFactory) {
+		try {
+			Field field = QueryPlanCache.class.getDeclaredField( "queryPlanCache" );
+			field.setAccessible( true );
+			return ( (Map<?, ?>) field.get( sessionFactory.getQueryPlanCache() ) ).size();
+		}
+		catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new IllegalStateException( "Unable to read the query plan cache size", e );
+		}
+	}
+
+	@Override
+	public void close() {
+		logger.removeAppender( this );
+		logger.setLevel( originalLevel );
+		logger.setAdditivity( originalAdditivity );
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the samples of a benchmark run with those of one or more baseline runs, where lower values are better.
+ *
+ * A run is a regression when a one-sided Mann-Whitney U test against the pooled samples of the baseline runs says it
+ * is slower at the {@link #SIGNIFICANCE_LEVEL} level, and its median is above the median of the slowest baseline run
+ * by more than {@link #MIN_RELATIVE_CHANGE}, and by more than the spread between the medians of the baseline runs.
+ * Timings vary from one JVM to the next, by far more than the samples of a single run suggest: this spread keeps
+ * that variation from being flagged.  The test makes no assumption on the distribution of the samples, which rarely
+ * is normal for timings.  Runs with fewer than {@link #MIN_SAMPLES} samples are never flagged.
+ */
+public class RegressionCheck {
+
+	public static final double SIGNIFICANCE_LEVEL = 0.01;
+	public static final double MIN_RELATIVE_CHANGE = 0.05;
+	public static final int MIN_SAMPLES = 5;
+
+	private final int baselineRunCount;
+	private final double baselineMedian;
+	private final double slowestBaselineMedian;
+	private final double fastestBaselineMedian;
+	private final double currentMedian;
+	private final double pValue;
+	private final boolean enoughSamples;
+
+	public RegressionCheck(long[] baseline, long[] current) {
+		this( Collections.singletonList( baseline ), current );
+	}
+
+	/**
+	 * @param baselineRuns the samples of each baseline run
+	 * @param current the samples of the run to check
+	 */
+	public RegressionCheck(List<long[]> baselineRuns, long[] current) {
+		long[] baseline = new long[0];
+		double slowestMedian = 0;
+		double fastestMedian = Double.MAX_VALUE;
+		boolean enoughBaselineSamples = !baselineRuns.isEmpty();
+		for ( long[] run : baselineRuns ) {
+			int offset = baseline.length;
+			baseline = Arrays.copyOf( baseline, offset + run.length );
+			System.arraycopy( run, 0, baseline, offset, run.length );
+			slowestMedian = Math.max( slowestMedian, median( run ) );
+			fastestMedian = Math.min( fastestMedian, median( run ) );
+			enoughBaselineSamples &= run.length >= MIN_SAMPLES;
+		}
+		this.baselineRunCount = baselineRuns.size();
+		this.baselineMedian = median( baseline );
+		this.slowestBaselineMedian = slowestMedian;
+		this.fastestBaselineMedian = baselineRuns.isEmpty() ? 0 : fastestMedian;
+		this.currentMedian = median( current );
+		this.enoughSamples = enoughBaselineSamples && current.length >= MIN_SAMPLES;
+		this.pValue = enoughSamples ? mannWhitneyPValue( baseline, current ) : 1d;
+	}
+
+	public boolean isRegression() {
+		return enoughSamples
+				&& pValue < SIGNIFICANCE_LEVEL
+				&& currentMedian > slowestBaselineMedian + Math.max(
+						slowestBaselineMedian * MIN_RELATIVE_CHANGE,
+						slowestBaselineMedian - fastestBaselineMedian
+				);
+	}
+
+	public double getRelativeChange() {
+		return baselineMedian == 0 ? 0 : ( currentMedian - baselineMedian ) / baselineMedian;
+	}
+
+	public double getPValue() {
+		return pValue;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"median %.1f -> %.1f (%+.1f%%), medians of %d baseline runs %.1f to %.1f, p-value %s",
+				baselineMedian,
+				currentMedian,
+				getRelativeChange() * 100,
+				baselineRunCount,
+				fastestBaselineMedian,
+				slowestBaselineMedian,
+				enoughSamples ? String.format( "%.4f", pValue ) : "n/a (not enough samples)"
+		);
+	}
+
+	private static double median(long[] samples) {
+		if ( samples.length == 0 ) {
+			return 0;
+		}
+		long[] sorted = samples.clone();
+		Arrays.sort( sorted );
+		int middle = sorted.length / 2;
+		return sorted.length % 2 == 1 ? sorted[middle] : ( sorted[middle - 1] + sorted[middle] ) / 2d;
+	}
+
+	/**
+	 * Probability of observing current samples at least this much larger than the baseline ones if both came from the
+	 * same distribution, using the normal approximation of the U statistic with continuity and tie corrections.
+	 */
+	static double mannWhitneyPValue(long[] baseline, long[] current) {
+		int n1 = baseline.length;
+		int n2 = current.length;
+		int n = n1 + n2;
+		long[] sorted = new long[n];
+		System.arraycopy( baseline, 0, sorted, 0, n1 );
+		System.arraycopy( current, 0, sorted, n1, n2 );
+		Arrays.sort( sorted );
+
+		// Sum of the ranks of the current samples, ties getting their average rank
+		double currentRankSum = 0;
+		for ( long value : current ) {
+			int first = lowerBound( sorted, value );
+			int last = lowerBound( sorted, value + 1 ) - 1;
+			currentRankSum += ( first + last ) / 2d + 1;
+		}
+
+		// Each group of t tied values lowers the variance of U by t^3 - t
+		double tieCorrection = 0;
+		for ( int first = 0; first < n; ) {
+			int last = first;
+			while ( last < n && sorted[last] == sorted[first] ) {
+				last++;
+			}
+			double ties = last - first;
+			tieCorrection += ties * ties * ties - ties;
+			first = last;
+		}
+
+		double u = currentRankSum - n2 * ( n2 + 1 ) / 2d;
+		double mean = n1 * (double) n2 / 2d;
+		double variance = n1 * (double) n2 / 12d * ( n + 1 - tieCorrection / ( n * ( n - 1d ) ) );
+		if ( variance <= 0 ) {
+			// All samples are equal
+			return 1d;
+		}
+		double z = ( u - mean - 0.5 ) / Math.sqrt( variance );
+		return 1 - normalCdf( z );
+	}
+
+	private static int lowerBound(long[] sorted, long value) {
+		int low = 0;
+		int high = sorted.length;
+		while ( low < high ) {
+			int middle = ( low + high ) >>> 1;
+			if ( sorted[middle] < value ) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static double normalCdf(double z) {
+		// Abramowitz and Stegun 7.1.26 approximation of erf, precise to 1.5e-7
+		double x = Math.abs( z ) / Math.sqrt( 2 );
+		double t = 1 / ( 1 + 0.3275911 * x );
+		double erf = 1 - ( ( ( ( 1.061405429 * t - 1.453152027 ) * t + 1.421413741 ) * t - 0.284496736 ) * t + 0.254829592 )
+				* t * Math.exp( -x * x );
+		return z >= 0 ? ( 1 + erf ) / 2 : ( 1 - erf ) / 2;
+	}
+}
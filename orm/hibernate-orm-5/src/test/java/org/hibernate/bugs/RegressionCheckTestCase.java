@@ -0,0 +1,92 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link RegressionCheck} against p-values of the one-sided Mann-Whitney U test computed with the normal
+ * approximation, continuity and tie corrections, as e.g. R's {@code wilcox.test(current, baseline,
+ * alternative = "greater", exact = FALSE)} does.
+ */
+public class RegressionCheckTestCase {
+
+	private static final double DELTA = 1e-6;
+
+	@Test
+	public void pValueWithoutTies() {
+		assertEquals(
+				0.006092890,
+				RegressionCheck.mannWhitneyPValue( new long[] { 1, 2, 3, 4, 5 }, new long[] { 6, 7, 8, 9, 10 } ),
+				DELTA
+		);
+	}
+
+	@Test
+	public void pValueWithTies() {
+		assertEquals(
+				0.015029784,
+				RegressionCheck.mannWhitneyPValue( new long[] { 1, 2, 2, 3, 3 }, new long[] { 3, 3, 4, 4, 5 } ),
+				DELTA
+		);
+		assertEquals(
+				0.001178535,
+				RegressionCheck.mannWhitneyPValue(
+						new long[] { 10, 10, 10, 10, 10, 11, 11, 11, 11, 11 },
+						new long[] { 11, 11, 11, 11, 11, 12, 12, 12, 12, 12 }
+				),
+				DELTA
+		);
+	}
+
+	@Test
+	public void identicalSamples() {
+		long[] samples = { 5, 5, 5, 5, 5 };
+		assertEquals( 1d, RegressionCheck.mannWhitneyPValue( samples, samples ), DELTA );
+		assertFalse( new RegressionCheck( samples, samples ).isRegression() );
+	}
+
+	@Test
+	public void regression() {
+		assertTrue( new RegressionCheck( new long[] { 1, 2, 3, 4, 5 }, new long[] { 6, 7, 8, 9, 10 } ).isRegression() );
+		// Faster is never a regression
+		assertFalse( new RegressionCheck( new long[] { 6, 7, 8, 9, 10 }, new long[] { 1, 2, 3, 4, 5 } ).isRegression() );
+		// Too few samples
+		assertFalse( new RegressionCheck( new long[] { 1, 2, 3, 4 }, new long[] { 6, 7, 8, 9 } ).isRegression() );
+	}
+
+	@Test
+	public void severalBaselineRuns() {
+		long[] current = { 16, 17, 18, 19, 20 };
+		// Significantly slower than the pooled baseline, and than each run by more than their spread
+		assertTrue( new RegressionCheck(
+				Arrays.asList( new long[] { 1, 2, 3, 4, 5 }, new long[] { 6, 7, 8, 9, 10 } ),
+				current
+		).isRegression() );
+		// Slower than each run, but within their spread
+		assertFalse( new RegressionCheck(
+				Arrays.asList( new long[] { 1, 2, 3, 4, 5 }, new long[] { 9, 10, 11, 12, 13 } ),
+				current
+		).isRegression() );
+		// Not slower than the slowest baseline run: a noisy run, not a regression
+		assertFalse( new RegressionCheck(
+				Arrays.asList( new long[] { 1, 2, 3, 4, 5 }, new long[] { 6, 7, 8, 9, 10 }, new long[] { 16, 17, 18, 19, 20 } ),
+				current
+		).isRegression() );
+		// One of the baseline runs has too few samples
+		assertFalse( new RegressionCheck(
+				Arrays.asList( new long[] { 1, 2, 3, 4, 5 }, new long[] { 6, 7 } ),
+				current
+		).isRegression() );
+	}
+}
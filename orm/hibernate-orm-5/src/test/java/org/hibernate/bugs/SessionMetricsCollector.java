@@ -0,0 +1,181 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gathers the metrics of every session ended during a test, and writes them as JSON: for each metric, a histogram of
+ * its per-session values, with power of two buckets, and a summary of these values.
+ *
+ * {@link SessionMetricsRule} creates one collector per test and binds it to the test thread, and to the threads the
+ * test starts, so that concurrent tests do not mix their sessions.
+ */
+public class SessionMetricsCollector {
+
+	private static final InheritableThreadLocal<SessionMetricsCollector> current = new InheritableThreadLocal<>();
+
+	private final List<Map<String, Long>> sessions = new ArrayList<>();
+
+	/**
+	 * Returns the collector of the test running on the current thread, or {@code null} if there is none.
+	 */
+	public static SessionMetricsCollector current() {
+		return current.get();
+	}
+
+	static void bind(SessionMetricsCollector collector) {
+		current.set( collector );
+	}
+
+	static void unbind() {
+		current.remove();
+	}
+
+	public synchronized void record(Map<String, Long> sessionMetrics) {
+		sessions.add( new LinkedHashMap<>( sessionMetrics ) );
+	}
+
+	public synchronized int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Returns the per-session values of each metric, in the order the sessions ended.
+	 */
+	public synchronized Map<String, long[]> getValues() {
+		Map<String, long[]> values = new LinkedHashMap<>();
+		for ( int i = 0; i < sessions.size(); i++ ) {
+			for ( Map.Entry<String, Long> metric : sessions.get( i ).entrySet() ) {
+				values.computeIfAbsent( metric.getKey(), name -> new long[sessions.size()] )[i] = metric.getValue();
+			}
+		}
+		return values;
+	}
+
+	public void writeJson(String testName, File file) throws IOException {
+		Map<String, long[]> values;
+		int sessionCount;
+		synchronized ( this ) {
+			values = getValues();
+			sessionCount = sessions.size();
+		}
+
+		file.getParentFile().mkdirs();
+		try ( Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) ) {
+			writer.write( "{\n" );
+			writer.write( "  \"test\": " + jsonString( testName ) + ",\n" );
+			writer.write( "  \"timestamp\": " + jsonString( Instant.now().toString() ) + ",\n" );
+			writer.write( "  \"sessions\": " + sessionCount + ",\n" );
+			writer.write( "  \"metrics\": {" );
+			String separator = "\n";
+			for ( Map.Entry<String, long[]> metric : values.entrySet() ) {
+				writer.write( separator + "    " + jsonString( metric.getKey() ) + ": " + metricJson( metric.getValue() ) );
+				separator = ",\n";
+			}
+			writer.write( "\n  }\n}\n" );
+		}
+	}
+
+	private static String metricJson(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort( sorted );
+		if ( sorted.length == 0 ) {
+			return "{ \"sum\": 0, \"buckets\": [] }";
+		}
+		long sum = 0;
+		for ( long value : sorted ) {
+			sum += value;
+		}
+		return String.format(
+				"{ \"sum\": %d, \"min\": %d, \"max\": %d, \"mean\": %d, \"p50\": %d, \"p95\": %d, \"p99\": %d, \"buckets\": %s }",
+				sum,
+				sorted[0],
+				sorted[sorted.length - 1],
+				sum / sorted.length,
+				percentile( sorted, 50 ),
+				percentile( sorted, 95 ),
+				percentile( sorted, 99 ),
+				bucketsJson( sorted )
+		);
+	}
+
+	/**
+	 * Counts the values per bucket, from the bucket of the lowest value to the bucket of the highest one.  Each bucket
+	 * holds the values up to its {@code le} bound, and above the bound of the previous bucket; bounds are 0, then the
+	 * powers of two.
+	 */
+	static String bucketsJson(long[] sorted) {
+		StringBuilder json = new StringBuilder( "[" );
+		int index = 0;
+		for ( long bound = upperBound( sorted[0] ); index < sorted.length; bound = bound == 0 ? 1 : bound * 2 ) {
+			int count = 0;
+			while ( index < sorted.length && sorted[index] <= bound ) {
+				count++;
+				index++;
+			}
+			json.append( json.length() == 1 ? " " : ", " )
+					.append( "{ \"le\": " ).append( bound ).append( ", \"count\": " ).append( count ).append( " }" );
+		}
+		return json.append( " ]" ).toString();
+	}
+
+	private static long upperBound(long value) {
+		if ( value <= 0 ) {
+			return 0;
+		}
+		long highestOneBit = Long.highestOneBit( value );
+		return highestOneBit == value ? value : highestOneBit * 2;
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil( percentile / 100d * sorted.length ) - 1;
+		return sorted[Math.max( 0, index )];
+	}
+
+	static String jsonString(String value) {
+		StringBuilder json = new StringBuilder( value.length() + 2 ).append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch ( c ) {
+				case '"':
+					json.append( "\\\"" );
+					break;
+				case '\\':
+					json.append( "\\\\" );
+					break;
+				case '\n':
+					json.append( "\\n" );
+					break;
+				case '\r':
+					json.append( "\\r" );
+					break;
+				case '\t':
+					json.append( "\\t" );
+					break;
+				default:
+					if ( c < 0x20 ) {
+						json.append( String.format( "\\u%04x", (int) c ) );
+					}
+					else {
+						json.append( c );
+					}
+			}
+		}
+		return json.append( '"' ).toString();
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.cfg.AvailableSettings;
+
+/**
+ * Captures the counters and timings printed by {@code hibernate.session.events.log} as data, and hands them over to
+ * the {@link SessionMetricsCollector} of the current test when the session ends.
+ *
+ * Register it for every session with the {@value AvailableSettings#AUTO_SESSION_EVENTS_LISTENER} setting, as
+ * {@link AbstractSessionMetricsTestCase} does.
+ */
+public class SessionMetricsListener extends BaseSessionEventListener {
+
+	private final SessionMetricsCollector collector = SessionMetricsCollector.current();
+	private final Map<String, Long> metrics = new LinkedHashMap<>();
+
+	private long jdbcConnectionAcquisitionStart = -1;
+	private long jdbcConnectionReleaseStart = -1;
+	private long jdbcPrepareStatementStart = -1;
+	private long jdbcExecuteStatementStart = -1;
+	private long jdbcExecuteBatchStart = -1;
+	private long cachePutStart = -1;
+	private long cacheGetStart = -1;
+	private long flushStart = -1;
+	private long partialFlushStart = -1;
+
+	public SessionMetricsListener() {
+		// Register every metric upfront, so all sessions report the same ones
+		for ( String name : new String[] {
+				"jdbc.connection.acquisition", "jdbc.connection.release", "jdbc.statement.prepare",
+				"jdbc.statement.execute", "jdbc.batch.execute", "cache.put", "cache.get", "flush", "partial_flush"
+		} ) {
+			metrics.put( name + ".count", 0L );
+			metrics.put( name + ".time_ns", 0L );
+		}
+		for ( String name : new String[] {
+				"cache.hit.count", "cache.miss.count", "flush.entity.count", "flush.collection.count",
+				"partial_flush.entity.count", "partial_flush.collection.count"
+		} ) {
+			metrics.put( name, 0L );
+		}
+	}
+
+	@Override
+	public void jdbcConnectionAcquisitionStart() {
+		jdbcConnectionAcquisitionStart = System.nanoTime();
+	}
+
+	@Override
+	public void jdbcConnectionAcquisitionEnd() {
+		jdbcConnectionAcquisitionStart = end( "jdbc.connection.acquisition", jdbcConnectionAcquisitionStart );
+	}
+
+	@Override
+	public void jdbcConnectionReleaseStart() {
+		jdbcConnectionReleaseStart = System.nanoTime();
+	}
+
+	@Override
+	public void jdbcConnectionReleaseEnd() {
+		jdbcConnectionReleaseStart = end( "jdbc.connection.release", jdbcConnectionReleaseStart );
+	}
+
+	@Override
+	public void jdbcPrepareStatementStart() {
+		jdbcPrepareStatementStart = System.nanoTime();
+	}
+
+	@Override
+	public void jdbcPrepareStatementEnd() {
+		jdbcPrepareStatementStart = end( "jdbc.statement.prepare", jdbcPrepareStatementStart );
+	}
+
+	@Override
+	public void jdbcExecuteStatementStart() {
+		jdbcExecuteStatementStart = System.nanoTime();
+	}
+
+	@Override
+	public void jdbcExecuteStatementEnd() {
+		jdbcExecuteStatementStart = end( "jdbc.statement.execute", jdbcExecuteStatementStart );
+	}
+
+	@Override
+	public void jdbcExecuteBatchStart() {
+		jdbcExecuteBatchStart = System.nanoTime();
+	}
+
+	@Override
+	public void jdbcExecuteBatchEnd() {
+		jdbcExecuteBatchStart = end( "jdbc.batch.execute", jdbcExecuteBatchStart );
+	}
+
+	@Override
+	public void cachePutStart() {
+		cachePutStart = System.nanoTime();
+	}
+
+	@Override
+	public void cachePutEnd() {
+		cachePutStart = end( "cache.put", cachePutStart );
+	}
+
+	@Override
+	public void cacheGetStart() {
+		cacheGetStart = System.nanoTime();
+	}
+
+	@Override
+	public void cacheGetEnd(boolean hit) {
+		cacheGetStart = end( "cache.get", cacheGetStart );
+		increment( hit ? "cache.hit.count" : "cache.miss.count", 1 );
+	}
+
+	@Override
+	public void flushStart() {
+		flushStart = System.nanoTime();
+	}
+
+	@Override
+	public void flushEnd(int numberOfEntities, int numberOfCollections) {
+		flushStart = end( "flush", flushStart );
+		increment( "flush.entity.count", numberOfEntities );
+		increment( "flush.collection.count", numberOfCollections );
+	}
+
+	@Override
+	public void partialFlushStart() {
+		partialFlushStart = System.nanoTime();
+	}
+
+	@Override
+	public void partialFlushEnd(int numberOfEntities, int numberOfCollections) {
+		partialFlushStart = end( "partial_flush", partialFlushStart );
+		increment( "partial_flush.entity.count", numberOfEntities );
+		increment( "partial_flush.collection.count", numberOfCollections );
+	}
+
+	@Override
+	public void end() {
+		if ( collector != null ) {
+			collector.record( metrics );
+		}
+	}
+
+	private long end(String name, long start) {
+		if ( start != -1 ) {
+			increment( name + ".count", 1 );
+			increment( name + ".time_ns", System.nanoTime() - start );
+		}
+		return -1;
+	}
+
+	private void increment(String name, long delta) {
+		metrics.merge( name, delta, Long::sum );
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.junit.rules.TestWatcher;
+import org.junit.runner.Description;
+
+/**
+ * Gives each test its own {@link SessionMetricsCollector}, and writes the session metrics it gathered to
+ * {@code <session.metrics.dir>/<test class>.<test method>.json}; the directory defaults to
+ * {@code target/session-metrics}.
+ *
+ * Sessions are only measured if {@link SessionMetricsListener} is registered, see
+ * {@link AbstractSessionMetricsTestCase}.
+ */
+public class SessionMetricsRule extends TestWatcher {
+
+	public static final String OUTPUT_DIRECTORY = "session.metrics.dir";
+
+	private SessionMetricsCollector collector;
+
+	public SessionMetricsCollector getCollector() {
+		return collector;
+	}
+
+	@Override
+	protected void starting(Description description) {
+		collector = new SessionMetricsCollector();
+		SessionMetricsCollector.bind( collector );
+	}
+
+	@Override
+	protected void finished(Description description) {
+		SessionMetricsCollector.unbind();
+		String testName = description.getClassName() + "." + description.getMethodName();
+		File directory = new File( System.getProperty( OUTPUT_DIRECTORY, "target/session-metrics" ) );
+		try {
+			collector.writeJson( testName, new File( directory, testName + ".json" ) );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to write the session metrics of " + testName, e );
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import static org.hibernate.testing.transaction.TransactionUtil.doInHibernate;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.junit.Test;
+
+/**
+ * Checks the session metrics gathered by {@link AbstractSessionMetricsTestCase}.
+ */
+public class SessionMetricsTestCase extends AbstractSessionMetricsTestCase {
+
+	@Override
+	protected Class[] getAnnotatedClasses() {
+		return new Class[] {
+				MetricsEntity.class
+		};
+	}
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.SHOW_SQL, Boolean.FALSE.toString() );
+	}
+
+	@Override
+	protected boolean isCleanupTestDataRequired() {
+		return true;
+	}
+
+	@Test
+	public void metricsPerSession() {
+		for ( long id = 1; id <= 3; id++ ) {
+			MetricsEntity entity = new MetricsEntity( id );
+			doInHibernate( this::sessionFactory, session -> {
+				session.persist( entity );
+			} );
+		}
+
+		SessionMetricsCollector collector = sessionMetrics.getCollector();
+		assertEquals( 3, collector.getSessionCount() );
+		Map<String, long[]> values = collector.getValues();
+		assertEquals( 3, values.get( "flush.count" ).length );
+		for ( long entities : values.get( "flush.entity.count" ) ) {
+			assertEquals( 1, entities );
+		}
+	}
+
+	@Test
+	public void histogramBuckets() {
+		assertEquals(
+				"[ { \"le\": 0, \"count\": 1 }, { \"le\": 1, \"count\": 1 }, { \"le\": 2, \"count\": 0 }, "
+						+ "{ \"le\": 4, \"count\": 2 }, { \"le\": 8, \"count\": 1 } ]",
+				SessionMetricsCollector.bucketsJson( new long[] { 0, 1, 3, 4, 5 } )
+		);
+		assertEquals(
+				"[ { \"le\": 128, \"count\": 1 }, { \"le\": 256, \"count\": 1 } ]",
+				SessionMetricsCollector.bucketsJson( new long[] { 100, 200 } )
+		);
+	}
+
+	@Test
+	public void jsonEscaping() {
+		assertEquals( "\"a\\\"b\\\\c\\nd\\u0001\"", SessionMetricsCollector.jsonString( "a\"b\\c\nd\u0001" ) );
+	}
+
+	@Entity(name = "MetricsEntity")
+	public static class MetricsEntity {
+
+		@Id
+		private Long id;
+
+		protected MetricsEntity() {
+		}
+
+		public MetricsEntity(Long id) {
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.bugs;
+
+import static org.hibernate.testing.transaction.TransactionUtil.doInHibernate;
+import static org.hibernate.testing.transaction.TransactionUtil.doInHibernateSessionBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.Version;
+
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Session;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.stat.Statistics;
+import org.hibernate.testing.junit4.BaseCoreFunctionalTestCase;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template measures the write path of a parent/child object graph with versioned entities, for each combination
+ * of {@code hibernate.jdbc.batch_size}, {@code hibernate.order_inserts}/{@code hibernate.order_updates} and identifier
+ * generation strategy, and reports the JDBC batches actually sent to the database.
+ *
+ * Replace the entities below with your own graph, keeping their identifier mapping in {@link IdGeneration}, and
+ * compare the reported numbers.  Keep in mind that IDENTITY generation silently disables insert batching.
+ *
+ * Each scenario runs {@link #WARMUP_ROUNDS} times before it is measured; the recorded samples are the durations of
+ * each chunk of {@link #CUSTOMERS_PER_FLUSH} customers, flush included.
+ */
+public class WritePathBenchmarkTestCase extends BaseCoreFunctionalTestCase {
+
+	private static final Logger log = Logger.getLogger( WritePathBenchmarkTestCase.class );
+
+	private static final int[] BATCH_SIZES = { 0, 50 };
+	private static final int WARMUP_ROUNDS = 2;
+	private static final int CUSTOMERS = 200;
+	private static final int ORDERS_PER_CUSTOMER = 3;
+	private static final int LINES_PER_ORDER = 5;
+	private static final int CUSTOMERS_PER_FLUSH = 10;
+
+	private final JdbcBatchMonitor batchMonitor = new JdbcBatchMonitor();
+
+	@Override
+	protected Class[] getAnnotatedClasses() {
+		return new Class[] {
+				WritePathCustomer.class,
+				WritePathOrder.class,
+				WritePathOrderLine.class
+		};
+	}
+
+	@Override
+	protected void configure(Configuration configuration) {
+		super.configure( configuration );
+
+		configuration.setProperty( AvailableSettings.SHOW_SQL, Boolean.FALSE.toString() );
+		configuration.setProperty( AvailableSettings.GENERATE_STATISTICS, Boolean.TRUE.toString() );
+		configuration.setProperty( "hibernate.session.events.log", Boolean.FALSE.toString() );
+	}
+
+	@Override
+	protected void prepareBasicRegistryBuilder(StandardServiceRegistryBuilder serviceRegistryBuilder) {
+		super.prepareBasicRegistryBuilder( serviceRegistryBuilder );
+
+		batchMonitor.applyTo( serviceRegistryBuilder );
+	}
+
+	@Override
+	protected boolean isCleanupTestDataRequired() {
+		return true;
+	}
+
+	@Test
+	public void writePathSweep() {
+		for ( IdGeneration idGeneration : IdGeneration.values() ) {
+			for ( int batchSize : BATCH_SIZES ) {
+				for ( boolean ordering : new boolean[] { false, true } ) {
+					runScenario( idGeneration, batchSize, ordering );
+				}
+			}
+		}
+	}
+
+	private void runScenario(IdGeneration idGeneration, int batchSize, boolean ordering) {
+		rebuildSessionFactory( configuration -> {
+			configuration.setProperty( AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf( batchSize ) );
+			configuration.setProperty( AvailableSettings.ORDER_INSERTS, String.valueOf( ordering ) );
+			configuration.setProperty( AvailableSettings.ORDER_UPDATES, String.valueOf( ordering ) );
+			idGeneration.applyTo( configuration );
+		} );
+		String scenario = String.format(
+				"%s, batch_size=%d, order_inserts/order_updates=%s",
+				idGeneration,
+				batchSize,
+				ordering
+		);
+
+		for ( int round = 0; round < WARMUP_ROUNDS; round++ ) {
+			measure( WritePathBenchmarkTestCase::insertCustomers, Statistics::getEntityInsertCount );
+			measure( WritePathBenchmarkTestCase::updateCustomers, Statistics::getEntityUpdateCount );
+			doInHibernate( this::sessionFactory, session -> {
+				session.createQuery( "delete from WritePathOrderLine" ).executeUpdate();
+				session.createQuery( "delete from WritePathOrder" ).executeUpdate();
+				session.createQuery( "delete from WritePathCustomer" ).executeUpdate();
+			} );
+		}
+
+		PhaseResult inserts = measure( WritePathBenchmarkTestCase::insertCustomers, Statistics::getEntityInsertCount );
+		assertEquals( CUSTOMERS * ( 1 + ORDERS_PER_CUSTOMER * ( 1 + LINES_PER_ORDER ) ), inserts.statements );
+		assertEquals( CUSTOMERS / CUSTOMERS_PER_FLUSH, inserts.chunkMicros.length );
+		log.infof( "%s, inserts: %s", scenario, inserts );
+		BenchmarkResultStore.getDefault().record( "WritePathBenchmarkTestCase.inserts." + scenario, "us", inserts.chunkMicros );
+
+		PhaseResult updates = measure( WritePathBenchmarkTestCase::updateCustomers, Statistics::getEntityUpdateCount );
+		assertEquals( CUSTOMERS * ( 1 + ORDERS_PER_CUSTOMER ), updates.statements );
+		assertEquals( CUSTOMERS / CUSTOMERS_PER_FLUSH, updates.chunkMicros.length );
+		log.infof( "%s, updates: %s", scenario, updates );
+		BenchmarkResultStore.getDefault().record( "WritePathBenchmarkTestCase.updates." + scenario, "us", updates.chunkMicros );
+
+		if ( batchSize > 1 && ordering && idGeneration != IdGeneration.IDENTITY ) {
+			assertTrue( inserts.averageBatchSize > 1 );
+		}
+	}
+
+	private static void insertCustomers(Session session, ChunkTimer chunks) {
+		chunks.start();
+		for ( int i = 0; i < CUSTOMERS; i++ ) {
+			session.persist( newCustomer( i ) );
+			if ( ( i + 1 ) % CUSTOMERS_PER_FLUSH == 0 ) {
+				session.flush();
+				session.clear();
+				chunks.end();
+			}
+		}
+	}
+
+	private static void updateCustomers(Session session, ChunkTimer chunks) {
+		List<WritePathCustomer> customers = session.createQuery(
+				"select distinct c from WritePathCustomer c join fetch c.orders",
+				WritePathCustomer.class
+		).list();
+		chunks.start();
+		for ( int i = 0; i < customers.size(); i++ ) {
+			WritePathCustomer customer = customers.get( i );
+			customer.setName( customer.getName() + "'" );
+			for ( WritePathOrder order : customer.getOrders() ) {
+				order.setStatus( "SHIPPED" );
+			}
+			if ( ( i + 1 ) % CUSTOMERS_PER_FLUSH == 0 ) {
+				session.flush();
+				chunks.end();
+			}
+		}
+	}
+
+	private PhaseResult measure(WritePathWork work, StatementCounter statementCounter) {
+		Statistics statistics = sessionFactory().getStatistics();
+		statistics.clear();
+		batchMonitor.reset();
+		JdbcExecutionListener listener = new JdbcExecutionListener();
+		ChunkTimer chunks = new ChunkTimer();
+
+		long start = System.nanoTime();
+		doInHibernateSessionBuilder(
+				() -> sessionFactory().withOptions().eventListeners( listener ),
+				session -> {
+					work.doWork( session, chunks );
+				}
+		);
+		long elapsedNanos = System.nanoTime() - start;
+
+		PhaseResult result = new PhaseResult();
+		result.statements = statementCounter.count( statistics );
+		result.flushes = statistics.getFlushCount();
+		result.jdbcExecutions = listener.executions;
+		result.batches = batchMonitor.getBatchCount();
+		result.averageBatchSize = batchMonitor.getAverageBatchSize();
+		result.maxBatchSize = batchMonitor.getMaxBatchSize();
+		result.batchSizeDistribution = batchMonitor.getBatchSizeDistribution();
+		result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis( elapsedNanos );
+		result.chunkMicros = chunks.getChunkMicros();
+		return result;
+	}
+
+	private static WritePathCustomer newCustomer(int index) {
+		WritePathCustomer customer = new WritePathCustomer( "customer_" + index );
+		for ( int i = 0; i < ORDERS_PER_CUSTOMER; i++ ) {
+			WritePathOrder order = new WritePathOrder( customer, "NEW" );
+			for ( int j = 0; j < LINES_PER_ORDER; j++ ) {
+				order.getLines().add( new WritePathOrderLine( order, "product_" + j, j + 1 ) );
+			}
+			customer.getOrders().add( order );
+		}
+		return customer;
+	}
+
+	private interface WritePathWork {
+		void doWork(Session session, ChunkTimer chunks);
+	}
+
+	private interface StatementCounter {
+		long count(Statistics statistics);
+	}
+
+	private static class PhaseResult {
+		private long statements;
+		private long flushes;
+		private int jdbcExecutions;
+		private int batches;
+		private double averageBatchSize;
+		private int maxBatchSize;
+		private SortedMap<Integer, Integer> batchSizeDistribution;
+		private long elapsedMillis;
+		// Duration of each chunk of work, flush included, the samples kept in the benchmark history
+		private long[] chunkMicros;
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d statements, %d flushes (%.1f statements per flush), %d JDBC executions, "
+							+ "%d batches (avg size %.1f, max size %d, batches per size %s), %d ms",
+					statements,
+					flushes,
+					flushes == 0 ? 0d : (double) statements / flushes,
+					jdbcExecutions,
+					batches,
+					averageBatchSize,
+					maxBatchSize,
+					batchSizeDistribution,
+					elapsedMillis
+			);
+		}
+	}
+
+	/**
+	 * Counts the round trips to the database: each batch and each statement executed outside of a batch.
+	 */
+	private static class JdbcExecutionListener extends BaseSessionEventListener {
+		private int executions;
+
+		@Override
+		public void jdbcExecuteStatementStart() {
+			executions++;
+		}
+
+		@Override
+		public void jdbcExecuteBatchStart() {
+			executions++;
+		}
+
+	}
+
+	/**
+	 * Times each chunk of work and the flush ending it.  Timing the flush alone would miss IDENTITY inserts, which
+	 * Hibernate executes as soon as the entities are persisted.
+	 */
+	private static class ChunkTimer {
+		private final List<Long> chunkMicros = new ArrayList<>();
+		private long chunkStart;
+
+		private void start() {
+			chunkStart = System.nanoTime();
+		}
+
+		private void end() {
+			long now = System.nanoTime();
+			chunkMicros.add( TimeUnit.NANOSECONDS.toMicros( now - chunkStart ) );
+			chunkStart = now;
+		}
+
+		private long[] getChunkMicros() {
+			return chunkMicros.stream().mapToLong( Long::longValue ).toArray();
+		}
+	}
+
+	/**
+	 * The identifier mapping of the entities, declared through orm.xml along with the sequence generators, so that the
+	 * same classes can be used for all strategies.
+	 */
+	private enum IdGeneration {
+		IDENTITY( "<generated-value strategy=\"IDENTITY\"/>" ),
+		SEQUENCE( "<generated-value strategy=\"SEQUENCE\" generator=\"write_path_sequence_no_pool\"/>" ),
+		POOLED_SEQUENCE( "<generated-value strategy=\"SEQUENCE\" generator=\"write_path_sequence\"/>" );
+
+		private static final String SEQUENCE_GENERATORS =
+				"<sequence-generator name=\"write_path_sequence\" allocation-size=\"50\"/>"
+						+ "<sequence-generator name=\"write_path_sequence_no_pool\" sequence-name=\"write_path_sequence\" allocation-size=\"1\"/>";
+
+		private final String idMapping;
+
+		IdGeneration(String idMapping) {
+			this.idMapping = idMapping;
+		}
+
+		void applyTo(Configuration configuration) {
+			StringBuilder xml = new StringBuilder( "<entity-mappings xmlns=\"http://xmlns.jcp.org/xml/ns/persistence/orm\" version=\"2.1\">" )
+					.append( SEQUENCE_GENERATORS );
+			for ( Class<?> entityClass : new Class<?>[] { WritePathCustomer.class, WritePathOrder.class, WritePathOrderLine.class } ) {
+				xml.append( "<entity class=\"" ).append( entityClass.getName() ).append( "\">" )
+						.append( "<attributes><id name=\"id\">" ).append( idMapping ).append( "</id></attributes>" )
+						.append( "</entity>" );
+			}
+			xml.append( "</entity-mappings>" );
+			configuration.addInputStream( new ByteArrayInputStream( xml.toString().getBytes( StandardCharsets.UTF_8 ) ) );
+		}
+	}
+
+	@Entity(name = "WritePathCustomer")
+	public static class WritePathCustomer {
+
+		@Id
+		@GeneratedValue(strategy = GenerationType.SEQUENCE)
+		private Long id;
+
+		@Version
+		private int version;
+
+		private String name;
+
+		@OneToMany(mappedBy = "customer", cascade = CascadeType.ALL)
+		private List<WritePathOrder> orders = new ArrayList<>();
+
+		protected WritePathCustomer() {
+		}
+
+		public WritePathCustomer(String name) {
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public List<WritePathOrder> getOrders() {
+			return orders;
+		}
+	}
+
+	@Entity(name = "WritePathOrder")
+	public static class WritePathOrder {
+
+		@Id
+		@GeneratedValue(strategy = GenerationType.SEQUENCE)
+		private Long id;
+
+		@Version
+		private int version;
+
+		private String status;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		private WritePathCustomer customer;
+
+		@OneToMany(mappedBy = "order", cascade = CascadeType.ALL)
+		private List<WritePathOrderLine> lines = new ArrayList<>();
+
+		protected WritePathOrder() {
+		}
+
+		public WritePathOrder(WritePathCustomer customer, String status) {
+			this.customer = customer;
+			this.status = status;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public void setStatus(String status) {
+			this.status = status;
+		}
+
+		public List<WritePathOrderLine> getLines() {
+			return lines;
+		}
+	}
+
+	@Entity(name = "WritePathOrderLine")
+	public static class WritePathOrderLine {
+
+		@Id
+		@GeneratedValue(strategy = GenerationType.SEQUENCE)
+		private Long id;
+
+		private String product;
+
+		private int quantity;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		private WritePathOrder order;
+
+		protected WritePathOrderLine() {
+		}
+
+		public WritePathOrderLine(WritePathOrder order, String product, int quantity) {
+			this.order = order;
+			this.product = product;
+			this.quantity = quantity;
+		}
+
+		public Long getId() {
+			return id;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.hibernate.search.bugs;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.hibernate.search.elasticsearch.spi.ElasticsearchHttpClientConfigurer;
+
+/**
+ * Measures how long Elasticsearch requests wait for a connection of the HTTP client pool, i.e. the time between the
+ * moment a request asks the pool for a connection and the moment it gets one, connecting new connections included.
+ *
+ * Registered through {@code META-INF/services}, but inactive unless {@link #ENABLED} is set to {@code true} for the
+ * session factory: the pool is then replaced by an instrumented one.  The client builder ignores its own pool and I/O
+ * reactor settings once a connection manager is set, so the instrumented pool is built from the settings the builder
+ * holds when this configurer runs: I/O reactor configuration, thread factory, connection configuration and pool sizes.
+ * These settings are private fields of {@link HttpAsyncClientBuilder}, read for lack of getters: check them when
+ * upgrading httpasyncclient.  The SSL strategy is not carried over, since it may be set by a configurer running after
+ * this one, so the monitor refuses to instrument the pool of {@code https} hosts rather than dropping TLS.
+ */
+public class ConnectionWaitMonitor implements ElasticsearchHttpClientConfigurer {
+
+	/**
+	 * Set {@code hibernate.search.default.elasticsearch.connection_wait_monitor} to {@code true} to instrument the
+	 * pool of a session factory.
+	 */
+	public static final String ENABLED = "elasticsearch.connection_wait_monitor";
+
+	private static final String HOST = "elasticsearch.host";
+	private static final String DISCOVERY_SCHEME = "elasticsearch.discovery.scheme";
+
+	private static long[] waitNanos = new long[1024];
+	private static int leaseCount;
+	private static final AtomicLong failedLeaseCount = new AtomicLong();
+
+	public static synchronized void reset() {
+		leaseCount = 0;
+		failedLeaseCount.set( 0 );
+	}
+
+	public static synchronized long[] getWaitNanos() {
+		return Arrays.copyOf( waitNanos, leaseCount );
+	}
+
+	public static long getFailedLeaseCount() {
+		return failedLeaseCount.get();
+	}
+
+	private static synchronized void recordLease(long nanos) {
+		if ( leaseCount == waitNanos.length ) {
+			waitNanos = Arrays.copyOf( waitNanos, leaseCount * 2 );
+		}
+		waitNanos[leaseCount++] = nanos;
+	}
+
+	@Override
+	public void configure(HttpAsyncClientBuilder builder, Properties properties) {
+		if ( !Boolean.parseBoolean( properties.getProperty( ENABLED ) ) ) {
+			return;
+		}
+		if ( usesHttps( properties.getProperty( HOST ), properties.getProperty( DISCOVERY_SCHEME ) ) ) {
+			throw new IllegalStateException(
+					"The connection wait monitor cannot instrument https hosts, which would lose their SSL strategy: unset " + ENABLED
+			);
+		}
+		// The same defaults as HttpAsyncClientBuilder.build()
+		IOReactorConfig ioReactorConfig = builderSetting( builder, "defaultIOReactorConfig", IOReactorConfig.class );
+		ThreadFactory threadFactory = builderSetting( builder, "threadFactory", ThreadFactory.class );
+		ConnectionConfig connectionConfig = builderSetting( builder, "defaultConnectionConfig", ConnectionConfig.class );
+		int maxTotal = builderSetting( builder, "maxConnTotal", Integer.class );
+		int maxPerRoute = builderSetting( builder, "maxConnPerRoute", Integer.class );
+		try {
+			MonitoredConnectionManager connectionManager = new MonitoredConnectionManager( new DefaultConnectingIOReactor(
+					ioReactorConfig != null ? ioReactorConfig : IOReactorConfig.DEFAULT,
+					threadFactory
+			) );
+			if ( connectionConfig != null ) {
+				connectionManager.setDefaultConnectionConfig( connectionConfig );
+			}
+			if ( maxTotal > 0 ) {
+				connectionManager.setMaxTotal( maxTotal );
+			}
+			if ( maxPerRoute > 0 ) {
+				connectionManager.setDefaultMaxPerRoute( maxPerRoute );
+			}
+			builder.setConnectionManager( connectionManager );
+		}
+		catch (IOReactorException e) {
+			throw new IllegalStateException( "Unable to create the monitored connection manager", e );
+		}
+	}
+
+	/**
+	 * Whether the client connects to {@code https} hosts, given the whitespace-separated host URIs and the scheme of
+	 * discovered nodes, as set for Hibernate Search; {@code null} values mean the {@code http} defaults.
+	 */
+	public static boolean usesHttps(String hosts, String discoveryScheme) {
+		if ( hosts != null ) {
+			for ( String host : hosts.trim().split( "\\s+" ) ) {
+				if ( host.toLowerCase( Locale.ROOT ).startsWith( "https:" ) ) {
+					return true;
+				}
+			}
+		}
+		return "https".equalsIgnoreCase( discoveryScheme );
+	}
+
+	/**
+	 * Reads a setting of the builder, which has no getters.
+	 */
+	private static <T> T builderSetting(HttpAsyncClientBuilder builder, String fieldName, Class<T> type) {
+		try {
+			java.lang.reflect.Field field = HttpAsyncClientBuilder.class.getDeclaredField( fieldName );
+			field.setAccessible( true );
+			return type.cast( field.get( builder ) );
+		}
+		catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new IllegalStateException( "Unable to read " + fieldName + " from the HTTP client builder", e );
+		}
+	}
+
+	private static class MonitoredConnectionManager extends PoolingNHttpClientConnectionManager {
+
+		private MonitoredConnectionManager(ConnectingIOReactor ioReactor) {
+			super( ioReactor );
+		}
+
+		@Override
+		public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout,
+				long leaseTimeout, TimeUnit tunit, FutureCallback<NHttpClientConnection> callback) {
+			long start = System.nanoTime();
+			return super.requestConnection( route, state, connectTimeout, leaseTimeout, tunit,
+					new FutureCallback<NHttpClientConnection>() {
+						@Override
+						public void completed(NHttpClientConnection connection) {
+							recordLease( System.nanoTime() - start );
+							if ( callback != null ) {
+								callback.completed( connection );
+							}
+						}
+
+						@Override
+						public void failed(Exception e) {
+							failedLeaseCount.incrementAndGet();
+							if ( callback != null ) {
+								callback.failed( e );
+							}
+						}
+
+						@Override
+						public void cancelled() {
+							if ( callback != null ) {
+								callback.cancelled();
+							}
+						}
+					}
+			);
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+package org.hibernate.search.bugs;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.apache.lucene.search.Query;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Environment;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.annotations.DocumentId;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Indexed;
+import org.jboss.logging.Logger;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * This template runs a concurrent indexing workload, then a concurrent query workload, against the Elasticsearch node
+ * for several HTTP client settings, and reports for each:
+ * <ul>
+ *     <li>the indexing and query throughput;</li>
+ *     <li>how long requests waited for a connection of the client pool, see {@link ConnectionWaitMonitor};</li>
+ *     <li>the number of failed transactions and queries, e.g. timeouts.</li>
+ * </ul>
+ * With a single node every request uses the same route, so {@code max_total_connection_per_route} (2 by default) caps
+ * the number of concurrent requests long before {@code max_total_connection} does.  Edit {@link #SCENARIOS} to match
+ * your own settings and load.
+ *
+ * It takes a few minutes, so it only runs when the {@code benchmarks} system property is {@code true}, e.g. with
+ * {@code mvn verify -Pbenchmarks}.
+ */
+public class ElasticsearchClientTuningIT extends SearchTestBase {
+
+	private static final Logger log = Logger.getLogger( ElasticsearchClientTuningIT.class );
+
+	private static final ClientScenario[] SCENARIOS = {
+			new ClientScenario( 20, 2, 30_000, 4 ),
+			new ClientScenario( 20, 2, 30_000, 16 ),
+			new ClientScenario( 20, 20, 30_000, 16 ),
+			new ClientScenario( 50, 50, 30_000, 32 ),
+			// Short timeouts: requests queuing in the client fail instead of waiting
+			new ClientScenario( 50, 4, 500, 32 )
+	};
+
+	private static final int TRANSACTIONS_PER_THREAD = 20;
+	private static final int ENTITIES_PER_TRANSACTION = 20;
+	private static final int QUERIES_PER_THREAD = 50;
+
+	private ClientScenario scenario = SCENARIOS[0];
+
+	private final AtomicInteger failedTransactions = new AtomicInteger();
+	private final AtomicInteger failedQueries = new AtomicInteger();
+
+	@BeforeClass
+	public static void benchmarksEnabled() {
+		Assume.assumeTrue( "Set -Dbenchmarks=true to run this benchmark", Boolean.getBoolean( "benchmarks" ) );
+		// hibernate.properties and system properties
+		Properties properties = Environment.getProperties();
+		Assume.assumeFalse(
+				"ConnectionWaitMonitor cannot instrument https hosts",
+				ConnectionWaitMonitor.usesHttps(
+						properties.getProperty( "hibernate.search.default.elasticsearch.host" ),
+						properties.getProperty( "hibernate.search.default.elasticsearch.discovery.scheme" )
+				)
+		);
+	}
+
+	@Override
+	public Class<?>[] getAnnotatedClasses() {
+		return new Class<?>[]{ TuningEntity.class };
+	}
+
+	@Override
+	protected void configure(Map<String, Object> settings) {
+		settings.put( "hibernate.search.default." + ConnectionWaitMonitor.ENABLED, Boolean.TRUE.toString() );
+		settings.put( "hibernate.search.default.elasticsearch.max_total_connection", String.valueOf( scenario.maxTotalConnection ) );
+		settings.put( "hibernate.search.default.elasticsearch.max_total_connection_per_route", String.valueOf( scenario.maxTotalConnectionPerRoute ) );
+		settings.put( "hibernate.search.default.elasticsearch.request_timeout", String.valueOf( scenario.timeoutMillis ) );
+		settings.put( "hibernate.search.default.elasticsearch.read_timeout", String.valueOf( scenario.timeoutMillis ) );
+		settings.put( "hibernate.search.default.elasticsearch.connection_timeout", String.valueOf( scenario.timeoutMillis ) );
+		// Refreshing after each write would make the node, not the client, the bottleneck
+		settings.put( "hibernate.search.default.elasticsearch.refresh_after_write", Boolean.FALSE.toString() );
+	}
+
+	@Test
+	public void clientSettingsSweep() throws Exception {
+		StringBuilder report = new StringBuilder( "Elasticsearch client settings:" );
+		for ( ClientScenario clientScenario : SCENARIOS ) {
+			scenario = clientScenario;
+			rebuildSessionFactory();
+
+			report.append( String.format( "%n%s", scenario ) );
+			report.append( String.format(
+					"%n    indexing: %s",
+					run( this::indexingWorkload, ENTITIES_PER_TRANSACTION * TRANSACTIONS_PER_THREAD, failedTransactions, "transactions" )
+			) );
+			// Documents become visible to queries after the periodic refresh of the node, which is fine for a load test
+			report.append( String.format(
+					"%n    queries:  %s",
+					run( this::queryWorkload, QUERIES_PER_THREAD, failedQueries, "queries" )
+			) );
+		}
+		log.info( report );
+	}
+
+	/**
+	 * Runs the workload on the threads of the current scenario; each thread performs {@code operationsPerThread}
+	 * operations.  {@code failures} is the counter the workload increments for each failed operation.
+	 */
+	private String run(Workload workload, int operationsPerThread, AtomicInteger failures, String failureKind) throws Exception {
+		ConnectionWaitMonitor.reset();
+		failures.set( 0 );
+		ExecutorService executor = Executors.newFixedThreadPool( scenario.threads );
+		long start = System.nanoTime();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for ( int thread = 0; thread < scenario.threads; thread++ ) {
+				int threadIndex = thread;
+				futures.add( executor.submit( () -> {
+					workload.run( threadIndex );
+					return null;
+				} ) );
+			}
+			for ( Future<?> future : futures ) {
+				future.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		long elapsedNanos = System.nanoTime() - start;
+
+		long[] waitNanos = ConnectionWaitMonitor.getWaitNanos();
+		assertTrue( "No request went through the monitored connection pool", waitNanos.length > 0 );
+		BenchmarkResultStore.getDefault().record(
+				"ElasticsearchClientTuningIT.connection wait of " + failureKind + ", " + scenario,
+				"us",
+				Arrays.stream( waitNanos ).map( TimeUnit.NANOSECONDS::toMicros ).toArray()
+		);
+		Arrays.sort( waitNanos );
+		long operations = (long) scenario.threads * operationsPerThread;
+		return String.format(
+				"%8.0f ops/s, %d failed %s | connection wait p50 %6d us, p99 %6d us, max %6d us over %d leases, %d failed leases",
+				operations * 1e9 / elapsedNanos,
+				failures.get(),
+				failureKind,
+				micros( percentile( waitNanos, 50 ) ),
+				micros( percentile( waitNanos, 99 ) ),
+				micros( waitNanos[waitNanos.length - 1] ),
+				waitNanos.length,
+				ConnectionWaitMonitor.getFailedLeaseCount()
+		);
+	}
+
+	private void indexingWorkload(int threadIndex) {
+		try ( Session s = getSessionFactory().openSession() ) {
+			for ( int t = 0; t < TRANSACTIONS_PER_THREAD; t++ ) {
+				Transaction tx = s.beginTransaction();
+				try {
+					for ( int j = 0; j < ENTITIES_PER_TRANSACTION; j++ ) {
+						long id = ( (long) threadIndex * TRANSACTIONS_PER_THREAD + t ) * ENTITIES_PER_TRANSACTION + j + 1;
+						s.persist( new TuningEntity( id, "name" + ( id % 100 ) ) );
+					}
+					tx.commit();
+				}
+				catch (RuntimeException e) {
+					log.debugf( e, "Indexing failed" );
+					failedTransactions.incrementAndGet();
+					if ( tx.isActive() ) {
+						tx.rollback();
+					}
+				}
+				s.clear();
+			}
+		}
+	}
+
+	private void queryWorkload(int threadIndex) {
+		try ( Session s = getSessionFactory().openSession() ) {
+			FullTextSession session = Search.getFullTextSession( s );
+			for ( int i = 0; i < QUERIES_PER_THREAD; i++ ) {
+				Query query = session.getSearchFactory().buildQueryBuilder().forEntity( TuningEntity.class ).get()
+						.keyword().onField( "name" ).matching( "name" + ( ( threadIndex + i ) % 100 ) ).createQuery();
+				try {
+					session.createFullTextQuery( query, TuningEntity.class ).setMaxResults( 10 ).list();
+				}
+				catch (RuntimeException e) {
+					log.debugf( e, "Query failed" );
+					failedQueries.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil( percentile / 100d * sorted.length ) - 1;
+		return sorted[Math.max( 0, index )];
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros( nanos );
+	}
+
+	@FunctionalInterface
+	private interface Workload {
+		void run(int threadIndex);
+	}
+
+	private static class ClientScenario {
+		private final int maxTotalConnection;
+		private final int maxTotalConnectionPerRoute;
+		private final int timeoutMillis;
+		private final int threads;
+
+		private ClientScenario(int maxTotalConnection, int maxTotalConnectionPerRoute, int timeoutMillis, int threads) {
+			this.maxTotalConnection = maxTotalConnection;
+			this.maxTotalConnectionPerRoute = maxTotalConnectionPerRoute;
+			this.timeoutMillis = timeoutMillis;
+			this.threads = threads;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"max_total_connection=%d, max_total_connection_per_route=%d, timeouts=%d ms, threads=%d",
+					maxTotalConnection,
+					maxTotalConnectionPerRoute,
+					timeoutMillis,
+					threads
+			);
+		}
+	}
+
+	@Entity(name = "TuningEntity")
+	@Indexed
+	public static class TuningEntity {
+
+		@Id
+		@DocumentId
+		private Long id;
+
+		@Field
+		private String name;
+
+		protected TuningEntity() {
+		}
+
+		public TuningEntity(Long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+}
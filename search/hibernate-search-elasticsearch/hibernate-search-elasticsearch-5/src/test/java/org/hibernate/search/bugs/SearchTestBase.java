@@ -1,5 +1,8 @@
 package org.hibernate.search.bugs;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
@@ -15,7 +18,11 @@ public abstract class SearchTestBase {
 	
 	@Before
 	public void setUp() {
+		Map<String, Object> settings = new HashMap<>();
+		configure( settings );
+
 		StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder();
+		registryBuilder.applySettings( settings );
 		ServiceRegistryImplementor serviceRegistry = (ServiceRegistryImplementor) registryBuilder.build();
 
 		MetadataSources ms = new MetadataSources( serviceRegistry );
@@ -37,6 +44,20 @@ public abstract class SearchTestBase {
 		this.sessionFactory.close();
 	}
 
+	/**
+	 * Closes the current session factory and builds a new one, e.g. after changing what {@link #configure(Map)} applies.
+	 */
+	protected void rebuildSessionFactory() {
+		tearDown();
+		setUp();
+	}
+
+	/**
+	 * Override to add or replace settings of {@code hibernate.properties}, e.g. Hibernate Search ones.
+	 */
+	protected void configure(Map<String, Object> settings) {
+	}
+
 	protected abstract Class<?>[] getAnnotatedClasses();
 	
 	protected SessionFactory getSessionFactory() {
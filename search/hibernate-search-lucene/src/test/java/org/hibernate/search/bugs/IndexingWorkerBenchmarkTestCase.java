@@ -0,0 +1,285 @@
+package org.hibernate.search.bugs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.annotations.DocumentId;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Indexed;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template compares the synchronous and asynchronous indexing workers of the Lucene backend.
+ *
+ * For each {@code hibernate.search.default.worker.execution} mode it commits {@link #TRANSACTIONS} transactions
+ * back to back and reports:
+ * <ul>
+ *     <li>the commit latency, i.e. the time spent in {@code tx.commit()} by the caller;</li>
+ *     <li>the indexing lag, i.e. the time between the end of a commit and the moment its entities are returned by
+ *     queries; a poller counts the indexed documents, so the lag has the resolution of a poll.</li>
+ * </ul>
+ * In async mode the caller only blocks when the queue holds more than {@link #MAX_QUEUE_LENGTH} pending changesets.
+ * The index writer buffer settings below apply to both modes; indexes are written to {@code target/indexes} so that
+ * the measures include the actual index I/O.
+ */
+public class IndexingWorkerBenchmarkTestCase extends SearchTestBase {
+
+	private static final Logger log = Logger.getLogger( IndexingWorkerBenchmarkTestCase.class );
+
+	private static final int TRANSACTIONS = 200;
+	private static final int ENTITIES_PER_TRANSACTION = 10;
+	private static final int MAX_QUEUE_LENGTH = 100;
+	private static final int WORKER_THREAD_POOL_SIZE = 1;
+	private static final int RAM_BUFFER_SIZE_MB = 64;
+	private static final int MAX_BUFFERED_DOCS = 1000;
+	private static final long POLL_INTERVAL_MILLIS = 1;
+	private static final long MAX_LAG_MILLIS = 60_000;
+
+	private static final String INDEX_BASE = "target/indexes";
+
+	private String workerExecution = "sync";
+
+	@Override
+	public Class<?>[] getAnnotatedClasses() {
+		return new Class<?>[]{ IndexingBenchmarkEntity.class };
+	}
+
+	@Override
+	protected void configure(Map<String, Object> settings) {
+		// Called before the session factory is built, so no index is open yet: start from an empty one
+		File indexBase = new File( INDEX_BASE, workerExecution );
+		deleteRecursively( indexBase.toPath() );
+
+		settings.put( "hibernate.search.default.directory_provider", "filesystem" );
+		settings.put( "hibernate.search.default.indexBase", indexBase.getAbsolutePath() );
+		settings.put( "hibernate.search.default.worker.execution", workerExecution );
+		settings.put( "hibernate.search.default.worker.thread_pool.size", String.valueOf( WORKER_THREAD_POOL_SIZE ) );
+		settings.put( "hibernate.search.default.max_queue_length", String.valueOf( MAX_QUEUE_LENGTH ) );
+		settings.put( "hibernate.search.default.indexwriter.ram_buffer_size", String.valueOf( RAM_BUFFER_SIZE_MB ) );
+		settings.put( "hibernate.search.default.indexwriter.max_buffered_docs", String.valueOf( MAX_BUFFERED_DOCS ) );
+	}
+
+	@Test
+	public void syncVersusAsyncIndexing() throws InterruptedException {
+		List<WorkerResult> results = new ArrayList<>();
+		// The session factory built before the test uses the sync worker
+		results.add( measure( workerExecution ) );
+
+		workerExecution = "async";
+		rebuildSessionFactory();
+		results.add( measure( workerExecution ) );
+
+		StringBuilder report = new StringBuilder( "Indexing worker modes:" );
+		for ( WorkerResult result : results ) {
+			report.append( String.format( "%n%s", result ) );
+		}
+		log.info( report );
+	}
+
+	private WorkerResult measure(String execution) throws InterruptedException {
+		IndexPoller poller = new IndexPoller( TRANSACTIONS * ENTITIES_PER_TRANSACTION );
+		Thread pollerThread = new Thread( poller, "index-poller-" + execution );
+		pollerThread.start();
+
+		long[] commitNanos = new long[TRANSACTIONS];
+		long[] committedAt = new long[TRANSACTIONS];
+		long id = 1;
+		try ( Session s = getSessionFactory().openSession() ) {
+			for ( int i = 0; i < TRANSACTIONS; i++ ) {
+				Transaction tx = s.beginTransaction();
+				for ( int j = 0; j < ENTITIES_PER_TRANSACTION; j++ ) {
+					s.persist( new IndexingBenchmarkEntity( id, "title " + id, body( id ) ) );
+					id++;
+				}
+				s.flush();
+				// Index changes are applied in tx.commit(), synchronously or not
+				long start = System.nanoTime();
+				tx.commit();
+				committedAt[i] = System.nanoTime();
+				commitNanos[i] = committedAt[i] - start;
+				s.clear();
+			}
+		}
+
+		pollerThread.join( MAX_LAG_MILLIS );
+		assertEquals( "Not all entities were indexed", TRANSACTIONS * ENTITIES_PER_TRANSACTION, poller.lastCount );
+
+		long[] lagNanos = new long[TRANSACTIONS];
+		for ( int i = 0; i < TRANSACTIONS; i++ ) {
+			long visibleAt = poller.getTimeOfCount( ( i + 1 ) * ENTITIES_PER_TRANSACTION );
+			lagNanos[i] = Math.max( 0, visibleAt - committedAt[i] );
+		}
+		BenchmarkResultStore store = BenchmarkResultStore.getDefault();
+		store.record( "IndexingWorkerBenchmarkTestCase.commit." + execution, "us", micros( commitNanos ) );
+		store.record( "IndexingWorkerBenchmarkTestCase.lag." + execution, "us", micros( lagNanos ) );
+		return new WorkerResult( execution, commitNanos, lagNanos );
+	}
+
+	private static long[] micros(long[] nanos) {
+		return Arrays.stream( nanos ).map( TimeUnit.NANOSECONDS::toMicros ).toArray();
+	}
+
+	private static void deleteRecursively(Path path) {
+		if ( !Files.exists( path ) ) {
+			return;
+		}
+		try ( Stream<Path> paths = Files.walk( path ) ) {
+			paths.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to delete " + path, e );
+		}
+	}
+
+	private static String body(long id) {
+		StringBuilder body = new StringBuilder();
+		for ( int i = 0; i < 50; i++ ) {
+			body.append( "word" ).append( ( id * 31 + i ) % 997 ).append( ' ' );
+		}
+		return body.toString();
+	}
+
+	/**
+	 * Counts the indexed entities until all are visible, remembering when each new count was first observed.
+	 */
+	private class IndexPoller implements Runnable {
+		private final int expectedCount;
+		private final List<long[]> observations = new ArrayList<>();
+		private volatile int lastCount;
+
+		private IndexPoller(int expectedCount) {
+			this.expectedCount = expectedCount;
+		}
+
+		@Override
+		public void run() {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( MAX_LAG_MILLIS );
+			try ( Session s = getSessionFactory().openSession() ) {
+				FullTextSession session = Search.getFullTextSession( s );
+				while ( lastCount < expectedCount && System.nanoTime() < deadline ) {
+					int count = session.createFullTextQuery( new MatchAllDocsQuery(), IndexingBenchmarkEntity.class )
+							.getResultSize();
+					long observedAt = System.nanoTime();
+					if ( count > lastCount ) {
+						synchronized ( observations ) {
+							observations.add( new long[] { count, observedAt } );
+						}
+						lastCount = count;
+					}
+					Thread.sleep( POLL_INTERVAL_MILLIS );
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private long getTimeOfCount(int count) {
+			synchronized ( observations ) {
+				for ( long[] observation : observations ) {
+					if ( observation[0] >= count ) {
+						return observation[1];
+					}
+				}
+			}
+			throw new IllegalStateException( count + " entities were never visible in the index" );
+		}
+	}
+
+	private static class WorkerResult {
+		private final String execution;
+		private final long[] commitNanos;
+		private final long[] lagNanos;
+
+		private WorkerResult(String execution, long[] commitNanos, long[] lagNanos) {
+			this.execution = execution;
+			this.commitNanos = commitNanos.clone();
+			this.lagNanos = lagNanos.clone();
+			Arrays.sort( this.commitNanos );
+			Arrays.sort( this.lagNanos );
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%-5s commit latency p50 %6d us, p99 %6d us, max %6d us | indexing lag p50 %8d us, p99 %8d us, max %8d us",
+					execution,
+					micros( percentile( commitNanos, 50 ) ),
+					micros( percentile( commitNanos, 99 ) ),
+					micros( commitNanos[commitNanos.length - 1] ),
+					micros( percentile( lagNanos, 50 ) ),
+					micros( percentile( lagNanos, 99 ) ),
+					micros( lagNanos[lagNanos.length - 1] )
+			);
+		}
+
+		private static long percentile(long[] sorted, int percentile) {
+			int index = (int) Math.ceil( percentile / 100d * sorted.length ) - 1;
+			return sorted[Math.max( 0, index )];
+		}
+
+		private static long micros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros( nanos );
+		}
+	}
+
+	@Entity(name = "IndexingBenchmarkEntity")
+	@Indexed
+	public static class IndexingBenchmarkEntity {
+
+		@Id
+		@DocumentId
+		private Long id;
+
+		@Field
+		private String title;
+
+		@Field
+		@Column(length = 1000)
+		private String body;
+
+		protected IndexingBenchmarkEntity() {
+		}
+
+		public IndexingBenchmarkEntity(Long id, String title, String body) {
+			this.id = id;
+			this.title = title;
+			this.body = body;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+
+}
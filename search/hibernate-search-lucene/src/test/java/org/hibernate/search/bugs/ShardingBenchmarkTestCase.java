@@ -0,0 +1,352 @@
+package org.hibernate.search.bugs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.search.FullTextQuery;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.annotations.Analyze;
+import org.hibernate.search.annotations.DocumentId;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.engine.ProjectionConstants;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template compares a single Lucene index with an index split into {@link #SHARDS} shards by
+ * {@link TenantShardIdentifierProvider}, as the dataset grows through {@link #DATASET_SIZES}.
+ *
+ * For each layout and dataset size it reports:
+ * <ul>
+ *     <li>the write throughput and commit latency of {@link #WRITER_THREADS} concurrent writers, each transaction
+ *     touching a single tenant; with one index all writers contend for the same index writer, with shards they only
+ *     contend when their tenants share a shard;</li>
+ *     <li>the latency of a keyword query run through Hibernate Search, which searches all shards at once through a
+ *     single multi-reader;</li>
+ *     <li>for the sharded layout, the latency of the same query fanned out to one thread per shard, the top hits of
+ *     each shard being merged afterwards.</li>
+ * </ul>
+ */
+public class ShardingBenchmarkTestCase extends SearchTestBase {
+
+	private static final Logger log = Logger.getLogger( ShardingBenchmarkTestCase.class );
+
+	private static final int SHARDS = 4;
+	// Kept small so that the benchmark runs in a few seconds: raise them towards the size of your own index
+	private static final int[] DATASET_SIZES = { 1_000, 2_000, 4_000 };
+	private static final int WRITER_THREADS = 4;
+	private static final int ENTITIES_PER_TRANSACTION = 50;
+	private static final int TENANTS = 16;
+	private static final int QUERIES = 50;
+	private static final int TOP_HITS = 20;
+	private static final int VOCABULARY = 997;
+
+	private static final String INDEX_NAME = "ShardedEntity";
+	private static final String INDEX_BASE = "target/indexes/sharding";
+
+	private int shards = 1;
+
+	@Override
+	public Class<?>[] getAnnotatedClasses() {
+		return new Class<?>[]{ ShardedEntity.class };
+	}
+
+	@Override
+	protected void configure(Map<String, Object> settings) {
+		// Called before the session factory is built, so no index is open yet: start from an empty one
+		File indexBase = new File( INDEX_BASE, shards + "-shards" );
+		deleteRecursively( indexBase.toPath() );
+
+		settings.put( "hibernate.search.default.directory_provider", "filesystem" );
+		settings.put( "hibernate.search.default.indexBase", indexBase.getAbsolutePath() );
+		if ( shards > 1 ) {
+			settings.put( "hibernate.search." + INDEX_NAME + ".sharding_strategy", TenantShardIdentifierProvider.class.getName() );
+			settings.put( "hibernate.search." + INDEX_NAME + "." + TenantShardIdentifierProvider.NBR_OF_SHARDS, String.valueOf( shards ) );
+		}
+	}
+
+	@Test
+	public void singleIndexVersusShards() throws Exception {
+		List<ShardingResult> results = new ArrayList<>();
+		for ( int layout : new int[] { 1, SHARDS } ) {
+			// The session factory built before the test uses a single index
+			if ( layout != shards ) {
+				shards = layout;
+				rebuildSessionFactory();
+			}
+
+			int indexed = 0;
+			for ( int datasetSize : DATASET_SIZES ) {
+				ShardingResult result = new ShardingResult( layout, datasetSize );
+				write( indexed, datasetSize, result );
+				indexed = datasetSize;
+				query( result );
+				results.add( result );
+				record( result );
+			}
+		}
+
+		StringBuilder report = new StringBuilder( "Single index versus shards:" );
+		for ( ShardingResult result : results ) {
+			report.append( String.format( "%n%s", result ) );
+		}
+		log.info( report );
+	}
+
+	private static void record(ShardingResult result) {
+		BenchmarkResultStore store = BenchmarkResultStore.getDefault();
+		String scenario = String.format( "%d shard(s), %d entities", result.shards, result.datasetSize );
+		store.record( "ShardingBenchmarkTestCase.commit." + scenario, "us", micros( result.commitNanos ) );
+		store.record( "ShardingBenchmarkTestCase.query." + scenario, "us", micros( result.queryNanos ) );
+		if ( result.fanOutNanos != null ) {
+			store.record( "ShardingBenchmarkTestCase.fan-out query." + scenario, "us", micros( result.fanOutNanos ) );
+		}
+	}
+
+	private static long[] micros(long[] nanos) {
+		return Arrays.stream( nanos ).map( TimeUnit.NANOSECONDS::toMicros ).toArray();
+	}
+
+	/**
+	 * Persists the entities {@code from + 1} to {@code to} from {@link #WRITER_THREADS} threads.
+	 */
+	private void write(int from, int to, ShardingResult result) throws InterruptedException, ExecutionException {
+		int transactions = ( to - from ) / ENTITIES_PER_TRANSACTION;
+		long[] commitNanos = new long[transactions];
+		AtomicInteger nextTransaction = new AtomicInteger();
+
+		ExecutorService writers = Executors.newFixedThreadPool( WRITER_THREADS );
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			long start = System.nanoTime();
+			for ( int i = 0; i < WRITER_THREADS; i++ ) {
+				futures.add( writers.submit( () -> {
+					try ( Session s = getSessionFactory().openSession() ) {
+						for ( int t = nextTransaction.getAndIncrement(); t < transactions; t = nextTransaction.getAndIncrement() ) {
+							Transaction tx = s.beginTransaction();
+							String tenant = "tenant" + ( t % TENANTS );
+							for ( int j = 1; j <= ENTITIES_PER_TRANSACTION; j++ ) {
+								long id = from + (long) t * ENTITIES_PER_TRANSACTION + j;
+								s.persist( new ShardedEntity( id, tenant, body( id ) ) );
+							}
+							s.flush();
+							long commitStart = System.nanoTime();
+							tx.commit();
+							commitNanos[t] = System.nanoTime() - commitStart;
+							s.clear();
+						}
+					}
+				} ) );
+			}
+			for ( Future<?> future : futures ) {
+				future.get();
+			}
+			result.writeNanos = System.nanoTime() - start;
+		}
+		finally {
+			writers.shutdown();
+		}
+		result.commitNanos = commitNanos;
+	}
+
+	private void query(ShardingResult result) throws InterruptedException, ExecutionException, IOException {
+		Random random = new Random( 42 );
+		long[] queryNanos = new long[QUERIES];
+		long[] fanOutNanos = new long[QUERIES];
+
+		ExecutorService shardSearchers = Executors.newFixedThreadPool( shards );
+		try ( Session s = getSessionFactory().openSession() ) {
+			FullTextSession session = Search.getFullTextSession( s );
+			assertEquals(
+					result.datasetSize,
+					session.createFullTextQuery( new MatchAllDocsQuery(), ShardedEntity.class )
+							.getResultSize()
+			);
+
+			for ( int i = 0; i < QUERIES; i++ ) {
+				Query query = session.getSearchFactory().buildQueryBuilder().forEntity( ShardedEntity.class ).get()
+						.keyword().onField( "body" ).matching( "word" + random.nextInt( VOCABULARY ) ).createQuery();
+
+				long start = System.nanoTime();
+				FullTextQuery fullTextQuery = session.createFullTextQuery( query, ShardedEntity.class )
+						.setProjection( ProjectionConstants.ID )
+						.setMaxResults( TOP_HITS );
+				fullTextQuery.list();
+				int resultSize = fullTextQuery.getResultSize();
+				queryNanos[i] = System.nanoTime() - start;
+
+				if ( shards > 1 ) {
+					start = System.nanoTime();
+					TopDocs topDocs = searchShardsInParallel( session, query, shardSearchers );
+					fanOutNanos[i] = System.nanoTime() - start;
+					assertEquals( resultSize, topDocs.totalHits );
+				}
+			}
+		}
+		finally {
+			shardSearchers.shutdown();
+		}
+		result.queryNanos = queryNanos;
+		result.fanOutNanos = shards > 1 ? fanOutNanos : null;
+	}
+
+	private TopDocs searchShardsInParallel(FullTextSession session, Query query, ExecutorService shardSearchers)
+			throws InterruptedException, ExecutionException, IOException {
+		IndexReaderAccessor readerAccessor = session.getSearchFactory().getIndexReaderAccessor();
+		List<Future<TopDocs>> futures = new ArrayList<>();
+		for ( int shard = 0; shard < shards; shard++ ) {
+			String shardName = INDEX_NAME + "." + shard;
+			futures.add( shardSearchers.submit( () -> {
+				IndexReader reader = readerAccessor.open( shardName );
+				try {
+					return new IndexSearcher( reader ).search( query, TOP_HITS );
+				}
+				finally {
+					readerAccessor.close( reader );
+				}
+			} ) );
+		}
+		TopDocs[] shardHits = new TopDocs[futures.size()];
+		for ( int i = 0; i < shardHits.length; i++ ) {
+			shardHits[i] = futures.get( i ).get();
+		}
+		return TopDocs.merge( TOP_HITS, shardHits );
+	}
+
+	private static void deleteRecursively(Path path) {
+		if ( !Files.exists( path ) ) {
+			return;
+		}
+		try ( Stream<Path> paths = Files.walk( path ) ) {
+			paths.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to delete " + path, e );
+		}
+	}
+
+	private static String body(long id) {
+		StringBuilder body = new StringBuilder();
+		for ( int i = 0; i < 50; i++ ) {
+			body.append( "word" ).append( ( id * 31 + i * 7 ) % VOCABULARY ).append( ' ' );
+		}
+		return body.toString();
+	}
+
+	private static class ShardingResult {
+		private final int shards;
+		private final int datasetSize;
+		private long writeNanos;
+		private long[] commitNanos;
+		private long[] queryNanos;
+		private long[] fanOutNanos;
+
+		private ShardingResult(int shards, int datasetSize) {
+			this.shards = shards;
+			this.datasetSize = datasetSize;
+		}
+
+		@Override
+		public String toString() {
+			long writtenEntities = (long) commitNanos.length * ENTITIES_PER_TRANSACTION;
+			return String.format(
+					"%d shard(s), %6d entities | writes %7.0f entities/s, commit p50 %6d us, p99 %6d us | query p50 %5d us, p99 %5d us | parallel fan-out %s",
+					shards,
+					datasetSize,
+					writtenEntities * 1e9 / writeNanos,
+					micros( percentile( commitNanos, 50 ) ),
+					micros( percentile( commitNanos, 99 ) ),
+					micros( percentile( queryNanos, 50 ) ),
+					micros( percentile( queryNanos, 99 ) ),
+					fanOutNanos == null
+							? "n/a"
+							: String.format(
+									"p50 %5d us, p99 %5d us",
+									micros( percentile( fanOutNanos, 50 ) ),
+									micros( percentile( fanOutNanos, 99 ) )
+							)
+			);
+		}
+
+		private static long percentile(long[] values, int percentile) {
+			long[] sorted = values.clone();
+			Arrays.sort( sorted );
+			int index = (int) Math.ceil( percentile / 100d * sorted.length ) - 1;
+			return sorted[Math.max( 0, index )];
+		}
+
+		private static long micros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros( nanos );
+		}
+	}
+
+	@Entity(name = "ShardedEntity")
+	@Indexed(index = INDEX_NAME)
+	public static class ShardedEntity {
+
+		@Id
+		@DocumentId
+		private Long id;
+
+		@Field(name = TenantShardIdentifierProvider.TENANT_FIELD, analyze = Analyze.NO)
+		private String tenant;
+
+		@Field
+		@Column(length = 1000)
+		private String body;
+
+		protected ShardedEntity() {
+		}
+
+		public ShardedEntity(Long id, String tenant, String body) {
+			this.id = id;
+			this.tenant = tenant;
+			this.body = body;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getTenant() {
+			return tenant;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+
+}
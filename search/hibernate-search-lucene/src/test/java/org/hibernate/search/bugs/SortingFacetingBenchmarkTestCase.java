@@ -0,0 +1,377 @@
+package org.hibernate.search.bugs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.uninverting.UninvertingReader;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.search.FullTextQuery;
+import org.hibernate.search.FullTextSession;
+import org.hibernate.search.Search;
+import org.hibernate.search.annotations.Analyze;
+import org.hibernate.search.annotations.DocumentId;
+import org.hibernate.search.annotations.Facet;
+import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Fields;
+import org.hibernate.search.annotations.Indexed;
+import org.hibernate.search.annotations.SortableField;
+import org.hibernate.search.engine.ProjectionConstants;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.hibernate.search.query.facet.FacetingRequest;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template runs sorted and faceted queries over {@link #ENTITIES} entities, on the {@code name_sort} and
+ * {@code category} fields of {@link DocValuesEntity}, which are backed by doc values, and on the same fields of
+ * {@link NoDocValuesEntity}, which are not.  Both entities hold the same data.
+ *
+ * <ul>
+ *     <li>Sorting on a {@link SortableField} reads its doc values.  Sorting on a field without doc values makes Lucene
+ *     uninvert the field into a heap structure, built by the first query and kept until the index reader is closed;
+ *     {@code hibernate.search.index_uninverting_allowed} must be {@code true} for such queries to run at all.</li>
+ *     <li>Faceting on a {@link Facet} field counts its doc values.  Hibernate Search refuses to facet on other fields,
+ *     so the values of the field without doc values are counted by {@link UninvertedFacetCollector}, which reads them
+ *     from the same heap structure Lucene builds to sort on such a field.</li>
+ * </ul>
+ * For each query, the first (cold) execution, the median of the following ones and the size of the structures Lucene
+ * uninverted on the heap for it, as reported by {@link UninvertingReader#getUninvertedStats()}, are reported.
+ */
+public class SortingFacetingBenchmarkTestCase extends SearchTestBase {
+
+	private static final Logger log = Logger.getLogger( SortingFacetingBenchmarkTestCase.class );
+
+	private static final int ENTITIES = 50_000;
+	private static final int ENTITIES_PER_TRANSACTION = 1_000;
+	private static final int CATEGORIES = 50;
+	private static final int ITERATIONS = 20;
+	private static final int TOP_HITS = 20;
+
+	// Each entry ends with the estimated size, e.g. " (size =~ 1.2 MB)"
+	private static final Pattern UNINVERTED_SIZE = Pattern.compile( "\\(size =~ ([0-9.]+) (bytes|KB|MB|GB)\\)$" );
+
+	@Override
+	public Class<?>[] getAnnotatedClasses() {
+		return new Class<?>[]{ DocValuesEntity.class, NoDocValuesEntity.class };
+	}
+
+	@Override
+	protected void configure(Map<String, Object> settings) {
+		settings.put( "hibernate.search.index_uninverting_allowed", Boolean.TRUE.toString() );
+	}
+
+	@Test
+	public void sortingAndFacetingWithAndWithoutDocValues() {
+		persistEntities();
+
+		StringBuilder report = new StringBuilder( "Sorting and faceting over " + ENTITIES + " entities:" );
+		try ( Session s = getSessionFactory().openSession() ) {
+			FullTextSession session = Search.getFullTextSession( s );
+			Query query = new MatchAllDocsQuery();
+
+			// Warm up the JVM with unsorted queries, so that the first scenario is not penalized
+			for ( int i = 0; i < ITERATIONS; i++ ) {
+				for ( Class<?> entityType : getAnnotatedClasses() ) {
+					session.createFullTextQuery( query, entityType )
+							.setProjection( ProjectionConstants.ID )
+							.setMaxResults( TOP_HITS )
+							.list();
+				}
+			}
+
+			report.append( measure( "sort, doc values", false, () -> sort( session, query, DocValuesEntity.class ) ) );
+			report.append( measure( "sort, uninverted", true, () -> sort( session, query, NoDocValuesEntity.class ) ) );
+			report.append( measure( "facet, doc values", false, () -> facet( session, query, DocValuesEntity.class ) ) );
+			report.append( measure( "facet, uninverted", true, () -> facetUninverted( session, query ) ) );
+		}
+		log.info( report );
+	}
+
+	private static void sort(FullTextSession session, Query query, Class<?> entityType) {
+		QueryBuilder qb = session.getSearchFactory().buildQueryBuilder().forEntity( entityType ).get();
+		Sort sort = qb.sort().byField( "name_sort" ).createSort();
+		List<?> hits = session.createFullTextQuery( query, entityType )
+				.setProjection( ProjectionConstants.ID )
+				.setSort( sort )
+				.setMaxResults( TOP_HITS )
+				.list();
+		assertEquals( TOP_HITS, hits.size() );
+	}
+
+	private static void facet(FullTextSession session, Query query, Class<?> entityType) {
+		QueryBuilder qb = session.getSearchFactory().buildQueryBuilder().forEntity( entityType ).get();
+		FacetingRequest facetingRequest = qb.facet()
+				.name( "categories" )
+				.onField( "category" )
+				.discrete()
+				.maxFacetCount( CATEGORIES )
+				.createFacetingRequest();
+		FullTextQuery fullTextQuery = session.createFullTextQuery( query, entityType )
+				.setMaxResults( 0 );
+		fullTextQuery.getFacetManager().enableFaceting( facetingRequest );
+		assertEquals( CATEGORIES, fullTextQuery.getFacetManager().getFacets( "categories" ).size() );
+	}
+
+	private static void facetUninverted(FullTextSession session, Query query) {
+		IndexReaderAccessor readerAccessor = session.getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = readerAccessor.open( NoDocValuesEntity.class );
+		try {
+			UninvertedFacetCollector collector = new UninvertedFacetCollector( "category" );
+			new IndexSearcher( reader ).search( query, collector );
+			assertEquals( CATEGORIES, collector.getCounts().size() );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+		finally {
+			readerAccessor.close( reader );
+		}
+	}
+
+	/**
+	 * Runs the query {@link #ITERATIONS} times and reports its latency, and the size of the fields it uninverted,
+	 * which must not be empty if it is {@code uninverting}.
+	 */
+	private String measure(String scenario, boolean uninverting, Runnable query) {
+		long uninvertedBefore = uninvertedBytes();
+		long[] nanos = new long[ITERATIONS];
+		for ( int i = 0; i < ITERATIONS; i++ ) {
+			long start = System.nanoTime();
+			query.run();
+			nanos[i] = System.nanoTime() - start;
+		}
+		long uninverted = uninvertedBytes() - uninvertedBefore;
+		if ( uninverting ) {
+			assertTrue( "No field was uninverted for " + scenario, uninverted > 0 );
+		}
+
+		long cold = nanos[0];
+		long[] warm = Arrays.copyOfRange( nanos, 1, nanos.length );
+		BenchmarkResultStore.getDefault().record(
+				"SortingFacetingBenchmarkTestCase." + scenario,
+				"us",
+				Arrays.stream( warm ).map( TimeUnit.NANOSECONDS::toMicros ).toArray()
+		);
+		Arrays.sort( warm );
+		return String.format(
+				"%n%-20s cold %8d us, warm p50 %8d us, uninverted %6d KB",
+				scenario,
+				TimeUnit.NANOSECONDS.toMicros( cold ),
+				TimeUnit.NANOSECONDS.toMicros( warm[warm.length / 2] ),
+				uninverted / 1024
+		);
+	}
+
+	/**
+	 * Sums the estimated sizes of the fields currently uninverted by Lucene, over all index readers.
+	 */
+	private static long uninvertedBytes() {
+		long bytes = 0;
+		for ( String entry : UninvertingReader.getUninvertedStats() ) {
+			Matcher matcher = UNINVERTED_SIZE.matcher( entry );
+			// Otherwise the format of the stats changed, and the sizes would silently be reported as 0
+			assertTrue( "Unexpected uninverted field stats: " + entry, matcher.find() );
+			bytes += (long) ( Double.parseDouble( matcher.group( 1 ) ) * unit( matcher.group( 2 ) ) );
+		}
+		return bytes;
+	}
+
+	private static long unit(String unit) {
+		switch ( unit.toUpperCase( Locale.ROOT ) ) {
+			case "GB":
+				return 1L << 30;
+			case "MB":
+				return 1L << 20;
+			case "KB":
+				return 1L << 10;
+			default:
+				return 1L;
+		}
+	}
+
+	private void persistEntities() {
+		try ( Session s = getSessionFactory().openSession() ) {
+			for ( int first = 1; first <= ENTITIES; first += ENTITIES_PER_TRANSACTION ) {
+				Transaction tx = s.beginTransaction();
+				for ( long id = first; id < first + ENTITIES_PER_TRANSACTION; id++ ) {
+					String name = "name " + ( id * 7919 % ENTITIES );
+					String category = "category" + ( id % CATEGORIES );
+					s.persist( new DocValuesEntity( id, name, category ) );
+					s.persist( new NoDocValuesEntity( id, name, category ) );
+				}
+				tx.commit();
+				s.clear();
+			}
+		}
+	}
+
+	/**
+	 * Counts the hits per value of a field, like a discrete faceting request, reading the values from an
+	 * {@link UninvertingReader} over each segment.
+	 */
+	private static class UninvertedFacetCollector extends SimpleCollector {
+		private final String field;
+		private final Map<String, Integer> counts = new HashMap<>();
+		private SortedDocValues values;
+		private int[] segmentCounts;
+
+		private UninvertedFacetCollector(String field) {
+			this.field = field;
+		}
+
+		@Override
+		protected void doSetNextReader(LeafReaderContext context) throws IOException {
+			addSegmentCounts();
+			values = new UninvertingReader(
+					context.reader(),
+					Collections.singletonMap( field, UninvertingReader.Type.SORTED )
+			).getSortedDocValues( field );
+			segmentCounts = new int[values.getValueCount()];
+		}
+
+		@Override
+		public void collect(int doc) {
+			int ord = values.getOrd( doc );
+			if ( ord >= 0 ) {
+				segmentCounts[ord]++;
+			}
+		}
+
+		@Override
+		public boolean needsScores() {
+			return false;
+		}
+
+		private Map<String, Integer> getCounts() {
+			addSegmentCounts();
+			return counts;
+		}
+
+		// Ordinals are per segment: resolve them to values before moving to the next one
+		private void addSegmentCounts() {
+			if ( segmentCounts == null ) {
+				return;
+			}
+			for ( int ord = 0; ord < segmentCounts.length; ord++ ) {
+				if ( segmentCounts[ord] > 0 ) {
+					counts.merge( values.lookupOrd( ord ).utf8ToString(), segmentCounts[ord], Integer::sum );
+				}
+			}
+			segmentCounts = null;
+		}
+	}
+
+	/**
+	 * An entity with a sortable copy of {@code name} and a {@code category} facet, both backed by doc values.
+	 */
+	@Entity(name = "DocValuesEntity")
+	@Indexed
+	public static class DocValuesEntity {
+
+		@Id
+		@DocumentId
+		private Long id;
+
+		@Fields({
+				@Field,
+				// Analyzed fields cannot be sorted on: sort on this non-analyzed copy, stored as doc values
+				@Field(name = "name_sort", analyze = Analyze.NO)
+		})
+		@SortableField(forField = "name_sort")
+		private String name;
+
+		@Field(analyze = Analyze.NO)
+		@Facet
+		private String category;
+
+		protected DocValuesEntity() {
+		}
+
+		public DocValuesEntity(Long id, String name, String category) {
+			this.id = id;
+			this.name = name;
+			this.category = category;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getCategory() {
+			return category;
+		}
+	}
+
+	/**
+	 * The fields of {@link DocValuesEntity}, without {@link SortableField} and {@link Facet}, hence without doc
+	 * values.
+	 */
+	@Entity(name = "NoDocValuesEntity")
+	@Indexed
+	public static class NoDocValuesEntity {
+
+		@Id
+		@DocumentId
+		private Long id;
+
+		@Fields({
+				@Field,
+				@Field(name = "name_sort", analyze = Analyze.NO)
+		})
+		private String name;
+
+		@Field(analyze = Analyze.NO)
+		private String category;
+
+		protected NoDocValuesEntity() {
+		}
+
+		public NoDocValuesEntity(Long id, String name, String category) {
+			this.id = id;
+			this.name = name;
+			this.category = category;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getCategory() {
+			return category;
+		}
+	}
+
+}
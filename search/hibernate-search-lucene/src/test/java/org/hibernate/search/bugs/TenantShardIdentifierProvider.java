@@ -0,0 +1,46 @@
+package org.hibernate.search.bugs;
+
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.hibernate.search.spi.BuildContext;
+import org.hibernate.search.store.ShardIdentifierProviderTemplate;
+
+/**
+ * Custom sharding strategy: documents are routed to a shard according to the value of their {@link #TENANT_FIELD}
+ * field, so that all the documents of a tenant share a shard.
+ *
+ * The number of shards is read from {@code hibernate.search.<index>.sharding_strategy.nbr_of_shards}, as for the
+ * built-in id hash strategy.  Queries are sent to all shards; narrow {@link #getShardIdentifiersForQuery} down with a
+ * full-text filter on the tenant if your queries always target a single tenant.
+ */
+public class TenantShardIdentifierProvider extends ShardIdentifierProviderTemplate {
+
+	public static final String TENANT_FIELD = "tenant";
+	public static final String NBR_OF_SHARDS = "sharding_strategy.nbr_of_shards";
+
+	private int nbrOfShards;
+
+	@Override
+	protected Set<String> loadInitialShardNames(Properties properties, BuildContext buildContext) {
+		nbrOfShards = Integer.parseInt( properties.getProperty( NBR_OF_SHARDS, "1" ) );
+		Set<String> shardNames = new LinkedHashSet<>();
+		for ( int i = 0; i < nbrOfShards; i++ ) {
+			shardNames.add( String.valueOf( i ) );
+		}
+		return shardNames;
+	}
+
+	@Override
+	public String getShardIdentifier(Class<?> entityType, Serializable id, String idAsString, Document document) {
+		String tenant = document.get( TENANT_FIELD );
+		if ( tenant == null ) {
+			throw new IllegalArgumentException( "No " + TENANT_FIELD + " field in the document of " + entityType + "#" + idAsString );
+		}
+		return String.valueOf( Math.floorMod( tenant.hashCode(), nbrOfShards ) );
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.hibernate.validator.bugs;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.validation.MessageInterpolator;
+import javax.validation.metadata.ConstraintDescriptor;
+
+import org.hibernate.validator.messageinterpolation.HibernateMessageInterpolatorContext;
+import org.hibernate.validator.messageinterpolation.ParameterMessageInterpolator;
+
+/**
+ * A {@link ParameterMessageInterpolator} which caches the interpolated messages, per locale, per message template and
+ * constraint.  Messages requested without a locale are interpolated by the delegate with its default locale, and
+ * cached apart.
+ *
+ * Without Expression Language, a message only depends on its template, the locale and the attributes of the
+ * constraint, so it can be computed once and reused by every violation of that constraint.  Messages of constraints
+ * adding message parameters or expression variables at validation time are not cached.  Note that EL expressions,
+ * e.g. {@code ${validatedValue}} or those of the default {@code @DecimalMax}/{@code @DecimalMin} messages, are left
+ * as is by {@link ParameterMessageInterpolator}.
+ *
+ * Use it with:
+ * <pre>
+ * Validation.byDefaultProvider().configure()
+ *         .messageInterpolator( new CachingMessageInterpolator( new ParameterMessageInterpolator() ) )
+ *         .buildValidatorFactory();
+ * </pre>
+ */
+public class CachingMessageInterpolator implements MessageInterpolator {
+
+	private final ParameterMessageInterpolator delegate;
+
+	private final ConcurrentMap<Locale, ConcurrentMap<MessageKey, String>> messagesByLocale = new ConcurrentHashMap<>();
+	private final ConcurrentMap<MessageKey, String> defaultLocaleMessages = new ConcurrentHashMap<>();
+
+	public CachingMessageInterpolator(ParameterMessageInterpolator delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public String interpolate(String messageTemplate, Context context) {
+		if ( hasDynamicParameters( context ) ) {
+			return delegate.interpolate( messageTemplate, context );
+		}
+		return defaultLocaleMessages.computeIfAbsent(
+				new MessageKey( messageTemplate, context.getConstraintDescriptor() ),
+				key -> delegate.interpolate( messageTemplate, context )
+		);
+	}
+
+	@Override
+	public String interpolate(String messageTemplate, Context context, Locale locale) {
+		if ( hasDynamicParameters( context ) ) {
+			return delegate.interpolate( messageTemplate, context, locale );
+		}
+		return messagesByLocale.computeIfAbsent( locale, l -> new ConcurrentHashMap<>() )
+				.computeIfAbsent(
+						new MessageKey( messageTemplate, context.getConstraintDescriptor() ),
+						key -> delegate.interpolate( messageTemplate, context, locale )
+				);
+	}
+
+	public int getCachedMessageCount() {
+		int count = defaultLocaleMessages.size();
+		for ( Map<MessageKey, String> messages : messagesByLocale.values() ) {
+			count += messages.size();
+		}
+		return count;
+	}
+
+	private static boolean hasDynamicParameters(Context context) {
+		if ( !( context instanceof HibernateMessageInterpolatorContext ) ) {
+			return false;
+		}
+		HibernateMessageInterpolatorContext hibernateContext = (HibernateMessageInterpolatorContext) context;
+		return !hibernateContext.getMessageParameters().isEmpty() || !hibernateContext.getExpressionVariables().isEmpty();
+	}
+
+	private static final class MessageKey {
+		private final String messageTemplate;
+		private final ConstraintDescriptor<?> constraintDescriptor;
+		private final int hashCode;
+
+		private MessageKey(String messageTemplate, ConstraintDescriptor<?> constraintDescriptor) {
+			this.messageTemplate = messageTemplate;
+			this.constraintDescriptor = constraintDescriptor;
+			this.hashCode = 31 * messageTemplate.hashCode() + constraintDescriptor.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( this == o ) {
+				return true;
+			}
+			if ( !( o instanceof MessageKey ) ) {
+				return false;
+			}
+			MessageKey other = (MessageKey) o;
+			return messageTemplate.equals( other.messageTemplate ) && constraintDescriptor.equals( other.constraintDescriptor );
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+package org.hibernate.validator.bugs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.MessageInterpolator;
+import javax.validation.Valid;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.Email;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.Size;
+
+import org.hibernate.validator.messageinterpolation.ParameterMessageInterpolator;
+import org.hibernate.validator.messageinterpolation.ResourceBundleMessageInterpolator;
+import org.jboss.logging.Logger;
+import org.junit.Test;
+
+/**
+ * This template validates a bulk payload where every item violates several constraints, and compares the throughput
+ * of the message interpolators:
+ * <ul>
+ *     <li>{@link ResourceBundleMessageInterpolator}, the default one, which evaluates Expression Language;</li>
+ *     <li>{@link ParameterMessageInterpolator}, which only replaces message parameters;</li>
+ *     <li>{@link CachingMessageInterpolator}, a {@link ParameterMessageInterpolator} caching messages per locale.</li>
+ * </ul>
+ * The constraints of {@link BulkItem} use messages without EL expressions, so that all interpolators produce the same
+ * messages.  The cost of evaluating EL is measured on its own, with the default interpolator, on {@link ElBulkItem},
+ * whose constraints use EL expressions in their messages: the other interpolators leave these expressions as is.
+ *
+ * All the validator factories are built and warmed up before any measurement, then each measured round validates the
+ * payload {@value #ITERATIONS_PER_ROUND} times with each interpolator.  The report gives the median duration of a
+ * validation and the range of the per-round medians: rankings within that range are noise.
+ */
+public class MessageInterpolationBenchmarkTestCase {
+
+	private static final Logger log = Logger.getLogger( MessageInterpolationBenchmarkTestCase.class );
+
+	private static final int ITEMS = 1_000;
+	private static final int VIOLATIONS_PER_ITEM = 7;
+	private static final int EL_VIOLATIONS_PER_ITEM = 2;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+	private static final int ITERATIONS_PER_ROUND = 10;
+
+	@Test
+	public void violationHeavyValidation() {
+		BulkPayload payload = new BulkPayload();
+		ElBulkPayload elPayload = new ElBulkPayload();
+		for ( int i = 0; i < ITEMS; i++ ) {
+			payload.items.add( new BulkItem() );
+			elPayload.items.add( new ElBulkItem() );
+		}
+
+		Mode defaultMode = new Mode( "EL (default)", ResourceBundleMessageInterpolator::new, payload, VIOLATIONS_PER_ITEM );
+		Mode parameterMode = new Mode( "parameters only", ParameterMessageInterpolator::new, payload, VIOLATIONS_PER_ITEM );
+		Mode cachedMode = new Mode(
+				"parameters, cached",
+				() -> new CachingMessageInterpolator( new ParameterMessageInterpolator() ),
+				payload,
+				VIOLATIONS_PER_ITEM
+		);
+		Mode elMode = new Mode( "EL, EL messages", ResourceBundleMessageInterpolator::new, elPayload, EL_VIOLATIONS_PER_ITEM );
+		List<Mode> modes = Arrays.asList( defaultMode, parameterMode, cachedMode, elMode );
+		try {
+			// The modes are measured in turns, in a rotating order, so that none always runs first, or on a colder JVM
+			for ( int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++ ) {
+				for ( int i = 0; i < modes.size(); i++ ) {
+					modes.get( ( round + i ) % modes.size() ).run( round - WARMUP_ROUNDS );
+				}
+			}
+
+			StringBuilder report = new StringBuilder( String.format(
+					"Message interpolation over %d items, median of %d rounds of %d validations:",
+					ITEMS,
+					ROUNDS,
+					ITERATIONS_PER_ROUND
+			) );
+			for ( Mode mode : modes ) {
+				BenchmarkResultStore.getDefault().record( "MessageInterpolationBenchmarkTestCase." + mode.name, "us", mode.samples );
+				mode.report( report, defaultMode );
+			}
+			log.info( report );
+		}
+		finally {
+			for ( Mode mode : modes ) {
+				mode.factory.close();
+			}
+		}
+
+		List<String> defaultMessages = defaultMode.firstItemMessages();
+		assertEquals( VIOLATIONS_PER_ITEM, defaultMessages.size() );
+		assertEquals( defaultMessages, parameterMode.firstItemMessages() );
+		assertEquals( defaultMessages, cachedMode.firstItemMessages() );
+		assertEquals(
+				Arrays.asList(
+						"items[0].code: ABCD is longer than 3 characters",
+						"items[0].discount: must be less than or equal to 50"
+				),
+				elMode.firstItemMessages()
+		);
+	}
+
+	private static long median(long[] samples) {
+		long[] sorted = samples.clone();
+		Arrays.sort( sorted );
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * Validates a payload with a validator factory built with a given message interpolator.
+	 */
+	private static class Mode {
+
+		private final String name;
+		private final ValidatorFactory factory;
+		private final Validator validator;
+		private final Object payload;
+		private final int violationsPerItem;
+		private final long[] samples = new long[ROUNDS * ITERATIONS_PER_ROUND];
+		private final long[] roundMedians = new long[ROUNDS];
+		private Set<ConstraintViolation<Object>> violations;
+
+		private Mode(String name, Supplier<MessageInterpolator> interpolator, Object payload, int violationsPerItem) {
+			this.name = name;
+			this.factory = Validation.byDefaultProvider().configure()
+					.messageInterpolator( interpolator.get() )
+					.buildValidatorFactory();
+			this.validator = factory.getValidator();
+			this.payload = payload;
+			this.violationsPerItem = violationsPerItem;
+		}
+
+		/**
+		 * Runs {@link #ITERATIONS_PER_ROUND} validations, and keeps their duration unless the round is a warmup one,
+		 * i.e. is negative.
+		 */
+		private void run(int round) {
+			long[] roundSamples = new long[ITERATIONS_PER_ROUND];
+			for ( int i = 0; i < ITERATIONS_PER_ROUND; i++ ) {
+				long start = System.nanoTime();
+				violations = validator.validate( payload );
+				roundSamples[i] = TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - start );
+				assertEquals( ITEMS * violationsPerItem, violations.size() );
+			}
+			if ( round >= 0 ) {
+				System.arraycopy( roundSamples, 0, samples, round * ITERATIONS_PER_ROUND, ITERATIONS_PER_ROUND );
+				roundMedians[round] = median( roundSamples );
+			}
+		}
+
+		/**
+		 * Appends the median duration of a validation, the range of the medians of each round, which tells whether the
+		 * modes can be ranked at all, and the ratio to the default mode when both validate the same payload.
+		 */
+		private void report(StringBuilder report, Mode defaultMode) {
+			long median = median( samples );
+			long[] sortedRoundMedians = roundMedians.clone();
+			Arrays.sort( sortedRoundMedians );
+			String ratio = payload == defaultMode.payload
+					? String.format( "%5.2fx", (double) median / median( defaultMode.samples ) )
+					: "    -";
+			report.append( String.format(
+					"%n%-20s %8d us per validation (rounds %8d to %8d us), %s the default, %10.0f violations/s",
+					name,
+					median,
+					sortedRoundMedians[0],
+					sortedRoundMedians[ROUNDS - 1],
+					ratio,
+					ITEMS * violationsPerItem * 1e6 / Math.max( 1, median )
+			) );
+		}
+
+		/**
+		 * The messages of the first item, sorted, so that the interpolators can be checked to produce the same messages.
+		 */
+		private List<String> firstItemMessages() {
+			List<String> messages = new ArrayList<>();
+			for ( ConstraintViolation<Object> violation : violations ) {
+				if ( violation.getPropertyPath().toString().startsWith( "items[0]." ) ) {
+					messages.add( violation.getPropertyPath() + ": " + violation.getMessage() );
+				}
+			}
+			Collections.sort( messages );
+			return messages;
+		}
+	}
+
+	public static class BulkPayload {
+
+		@Valid
+		private final List<BulkItem> items = new ArrayList<>();
+	}
+
+	/**
+	 * An item violating {@link #VIOLATIONS_PER_ITEM} constraints.
+	 */
+	public static class BulkItem {
+
+		@NotNull
+		private Long id;
+
+		@Size(min = 3, max = 20)
+		private String name = "x";
+
+		@Min(1)
+		@Max(100)
+		private int quantity = 0;
+
+		@Pattern(regexp = "[A-Z]{3}")
+		private String currency = "euro";
+
+		@Email
+		private String email = "not an email";
+
+		@Positive
+		private BigDecimal price = BigDecimal.ZERO;
+
+		@Size(min = 8, max = 8)
+		private String reference = "ref";
+	}
+
+	public static class ElBulkPayload {
+
+		@Valid
+		private final List<ElBulkItem> items = new ArrayList<>();
+	}
+
+	/**
+	 * An item violating {@link #EL_VIOLATIONS_PER_ITEM} constraints, whose messages use EL expressions: a custom one,
+	 * and the default one of {@link DecimalMax}.
+	 */
+	public static class ElBulkItem {
+
+		@Size(max = 3, message = "${validatedValue} is longer than {max} characters")
+		private String code = "ABCD";
+
+		@DecimalMax("50")
+		private BigDecimal discount = new BigDecimal( "75" );
+	}
+
+}